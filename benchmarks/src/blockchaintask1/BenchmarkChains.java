@@ -0,0 +1,29 @@
+package blockchaintask1;
+
+import java.sql.Timestamp;
+
+/**
+ * Builds the chains used by the benchmarks.
+ * Blocks are mined at a low difficulty so that building a chain of a million blocks only takes seconds.
+ */
+final class BenchmarkChains {
+    static final int BLOCK_DIFFICULTY = 1;
+
+    private BenchmarkChains() {
+    }
+
+    /**
+     * @param size number of blocks, including the genesis block
+     * @return a valid chain with the given number of blocks
+     */
+    static BlockChain build(int size) {
+        BlockChain blockChain = new BlockChain();
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            // Consecutive timestamps, as if one block was added every second
+            Block block = new Block(i, new Timestamp(time + i * 1000L), "Transaction " + i, BLOCK_DIFFICULTY);
+            blockChain.addBlock(block);
+        }
+        return blockChain;
+    }
+}
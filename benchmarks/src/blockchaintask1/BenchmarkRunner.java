@@ -0,0 +1,40 @@
+package blockchaintask1;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs the benchmark suite and writes the results as JSON, so that they can be compared across releases.
+ * Results go to bench-results/jmh-yyyyMMdd-HHmmss.json unless another format or file is given with -rf or -rff.
+ * Any other JMH command line option can be passed too, for example a benchmark name regex to run a subset,
+ * or "-p chainSize=1000" to limit the parameters.
+ *
+ * References:
+ * 1. https://github.com/openjdk/jmh/blob/master/jmh-samples/src/main/java/org/openjdk/jmh/samples/JMHSample_01_HelloWorld.java
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        // Options set on the builder win over the command line, so only set the ones that were not given
+        if (!commandLine.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue()) {
+            File resultDirectory = new File("bench-results");
+            resultDirectory.mkdirs();
+            String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            options.result(new File(resultDirectory, "jmh-" + timestamp + ".json").getPath());
+        }
+        new Runner(options.build()).run();
+    }
+}
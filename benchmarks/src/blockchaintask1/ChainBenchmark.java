@@ -0,0 +1,87 @@
+package blockchaintask1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BlockChain#isChainValid()} and {@link BlockChain#repairChain()} on chains of 10^3 to 10^6 blocks.
+ * isChainValid verifies every block again, isChainValidIncremental only what changed since the last verification,
+ * which on an untouched chain is a single hash.
+ * Before each repair one block near the tip is corrupted, the way choice 4 of the client does it.
+ * So a repair re-mines a handful of blocks and rehashes the whole chain.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ChainBenchmark {
+
+    /**
+     * A valid chain that is only read by the benchmarks
+     */
+    @State(Scope.Benchmark)
+    public static class ValidChain {
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int chainSize;
+
+        BlockChain blockChain;
+
+        @Setup(Level.Trial)
+        public void buildChain() {
+            blockChain = BenchmarkChains.build(chainSize);
+        }
+    }
+
+    /**
+     * A chain that gets one block near the tip corrupted before every invocation
+     */
+    @State(Scope.Benchmark)
+    public static class CorruptedChain {
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int chainSize;
+
+        BlockChain blockChain;
+        private int corruptions;
+
+        @Setup(Level.Trial)
+        public void buildChain() {
+            blockChain = BenchmarkChains.build(chainSize);
+        }
+
+        @Setup(Level.Invocation)
+        public void corruptBlockNearTip() {
+            corruptions++;
+            int id = Math.max(0, chainSize - 10);
+            blockChain.getBlock(id).setData("Corrupted " + corruptions);
+        }
+    }
+
+    @Benchmark
+    public boolean isChainValid(ValidChain state) {
+        return state.blockChain.isChainValid(true);
+    }
+
+    @Benchmark
+    public boolean isChainValidIncremental(ValidChain state) {
+        return state.blockChain.isChainValid();
+    }
+
+    @Benchmark
+    public String repairChain(CorruptedChain state) {
+        state.blockChain.repairChain();
+        return state.blockChain.getChainHash();
+    }
+}
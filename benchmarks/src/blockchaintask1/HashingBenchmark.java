@@ -0,0 +1,63 @@
+package blockchaintask1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hashing primitives in {@link Utils}: SHA-256 of a String to hex, and the leading zeroes check
+ * on both the hex and the raw form of a hash.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashingBenchmark {
+
+    // Length of the hashed String, a header with a short transaction is around 100 characters
+    @Param({"16", "128", "1024"})
+    public int inputLength;
+
+    private String input;
+    private String hexHash;
+    private byte[] rawHash;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder(inputLength);
+        for (int i = 0; i < inputLength; i++)
+            sb.append((char) ('a' + i % 26));
+        input = sb.toString();
+        // A hash with 4 leading zeroes, so the check has to look at several digits
+        hexHash = "0000" + Utils.getSHA256Hash(input).substring(4);
+        rawHash = new byte[32];
+        rawHash[2] = 0x0F;
+    }
+
+    @Benchmark
+    public String getSHA256Hash() {
+        return Utils.getSHA256Hash(input);
+    }
+
+    @Benchmark
+    public boolean hasLeadingZeroesHex() {
+        return Utils.hasLeadingZeroes(hexHash, 5);
+    }
+
+    @Benchmark
+    public boolean hasLeadingZeroesRaw() {
+        return Utils.hasLeadingZeroes(rawHash, 5);
+    }
+}
@@ -0,0 +1,62 @@
+package blockchaintask1;
+
+import java.sql.Timestamp;
+
+/**
+ * MiningBenchmark measures how many nonce attempts per second a single thread can hash as the transaction grows.
+ * For each transaction size it compares hashing the whole header per attempt with resuming from the SHA-256
+ * midstate of the constant part of the header (see {@link Sha256Midstate}).
+ * Each measurement is repeated after a few warmup rounds so that the JIT has compiled the hashing loop.
+ * The results are printed as CSV: transaction bytes, hashing, attempts per second.
+ */
+public class MiningBenchmark {
+    private static final int[] TRANSACTION_SIZES = {16, 64, 256, 1024, 4096, 16384};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ATTEMPTS_PER_ROUND = 200_000;
+
+    /**
+     * Hashes ATTEMPTS_PER_ROUND nonces with the given hasher
+     * @return attempts per second
+     */
+    private static double measureRound(HeaderHasher hasher) {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (long nonce = 0; nonce < ATTEMPTS_PER_ROUND; nonce++)
+            sink += hasher.hash(nonce)[31];
+        long elapsed = System.nanoTime() - start;
+        // Use the hashes so that the loop cannot be optimized away
+        if (sink == Integer.MIN_VALUE)
+            System.out.println();
+        return ATTEMPTS_PER_ROUND / (elapsed / 1_000_000_000.0);
+    }
+
+    /**
+     * Measures one transaction size with one kind of hashing
+     * @return best attempts per second over the measured rounds
+     */
+    private static double measure(Block block, Miner.Hashing hashing) {
+        HeaderHasher hasher = new HeaderHasher(block, hashing);
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            measureRound(hasher);
+        double best = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++)
+            best = Math.max(best, measureRound(hasher));
+        return best;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("transactionBytes,hashing,attemptsPerSecond");
+        for (int size : TRANSACTION_SIZES) {
+            StringBuilder data = new StringBuilder(size);
+            for (int i = 0; i < size; i++)
+                data.append((char) ('a' + i % 26));
+            Block block = new Block(1, new Timestamp(System.currentTimeMillis()), data.toString(), 4);
+            block.setPreviousHash(Utils.getSHA256Hash("genesis"));
+
+            for (Miner.Hashing hashing : new Miner.Hashing[]{Miner.Hashing.FULL_HEADER, Miner.Hashing.MIDSTATE}) {
+                System.out.printf("%d,%s,%.0f%n", size, hashing, measure(block, hashing));
+            }
+        }
+    }
+}
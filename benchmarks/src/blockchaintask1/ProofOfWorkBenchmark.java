@@ -0,0 +1,58 @@
+package blockchaintask1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Block#proofOfWork()} at several difficulties, in both {@link Miner} modes.
+ * Every invocation mines a new block, so that each one searches a different part of the nonce space.
+ * The time to mine a block is random, so the average over many invocations is what matters here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ProofOfWorkBenchmark {
+
+    @Param({"1", "2", "3", "4", "5"})
+    public int difficulty;
+
+    @Param({"SINGLE_THREADED", "PARALLEL"})
+    public Miner.Mode mode;
+
+    private Block block;
+    private int blockCount;
+
+    @Setup(Level.Trial)
+    public void configureMiner() {
+        Miner.setMode(mode);
+    }
+
+    @Setup(Level.Invocation)
+    public void createBlock() {
+        blockCount++;
+        block = new Block(blockCount, new Timestamp(System.currentTimeMillis()), "Alice pays Bob " + blockCount,
+                difficulty);
+        block.setPreviousHash(Utils.getSHA256Hash("parent " + blockCount));
+    }
+
+    @Benchmark
+    public String proofOfWork() {
+        return block.proofOfWork();
+    }
+}
@@ -0,0 +1,114 @@
+package blockchaintask1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PropagationBenchmark measures how long a newly mined block takes to reach every node of a {@link PeerNetwork}.
+ * It starts the nodes in this process, each a {@link ServerModel} behind a {@link BlockChainServerTCP} on its own
+ * localhost port, connected either as a mesh, where every node is a peer of every other node, or as a line,
+ * where each node only knows its neighbours, so that a block travels through every node in turn.
+ * The nodes mine their own genesis blocks, so a first block is mined and waited for until every node switched
+ * to the same chain. Then each round mines a block on the next node and times how long it takes, after the
+ * block is mined, until every node has it as its most recent block.
+ * The server logs every request, so standard output is silenced and the results are printed to the original one.
+ * Usage: PropagationBenchmark [nodes, 4 by default] [blocks, 50 by default] [mesh or line, mesh by default]
+ * [first port, 9100 by default]
+ */
+public class PropagationBenchmark {
+    private static final int DIFFICULTY = 2;
+    private static final long TIMEOUT_NANOS = 30_000_000_000L;
+
+    public static void main(String[] args) throws IOException {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int blockCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        boolean line = args.length > 2 && args[2].equals("line");
+        int firstPort = args.length > 3 ? Integer.parseInt(args[3]) : 9100;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        List<ServerModel> nodes = new ArrayList<>();
+        List<BlockChainServerTCP> servers = new ArrayList<>();
+        List<PeerNetwork> networks = new ArrayList<>();
+        LatencyHistogram propagation = new LatencyHistogram();
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                ServerModel node = ServerModel.start();
+                BlockChainServerTCP server = new BlockChainServerTCP(node, firstPort + i);
+                Thread thread = new Thread(() -> {
+                    try {
+                        server.serve();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }, "node-" + i);
+                thread.setDaemon(true);
+                thread.start();
+                nodes.add(node);
+                servers.add(server);
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                List<String> peers = new ArrayList<>();
+                for (int j = 0; j < nodeCount; j++) {
+                    if (j != i && (!line || Math.abs(i - j) == 1))
+                        peers.add("localhost:" + (firstPort + j));
+                }
+                PeerNetwork network = new PeerNetwork(nodes.get(i), "localhost:" + (firstPort + i), peers);
+                // Only blocks that are announced are measured, periodic syncs would hide lost announcements
+                network.start(0);
+                networks.add(network);
+            }
+
+            mineAndWait(nodes, 0, "warmup");
+            for (int round = 0; round < blockCount; round++) {
+                long nanos = mineAndWait(nodes, round % nodeCount, "block " + round);
+                if (nanos < 0) {
+                    out.println("Block " + round + " did not reach every node");
+                    break;
+                }
+                propagation.record(nanos);
+            }
+        } finally {
+            for (PeerNetwork network : networks)
+                network.close();
+            for (BlockChainServerTCP server : servers)
+                server.close();
+            for (ServerModel node : nodes)
+                node.shutdown();
+        }
+
+        out.printf(Locale.ROOT, "%d nodes (%s), %d blocks of difficulty %d%n", nodeCount, line ? "line" : "mesh",
+                propagation.getCount(), DIFFICULTY);
+        out.printf(Locale.ROOT, "Time to reach every node: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                propagation.getValueAtQuantile(0.5) / 1e6, propagation.getValueAtQuantile(0.9) / 1e6,
+                propagation.getValueAtQuantile(0.99) / 1e6, propagation.getMax() / 1e6);
+    }
+
+    /**
+     * Mines a block on one node and waits until every node has it as its most recent block
+     * @return nanoseconds from the end of mining until the last node had the block, -1 on a timeout
+     */
+    private static long mineAndWait(List<ServerModel> nodes, int miner, String data) {
+        ServerModel node = nodes.get(miner);
+        node.processRequest(Request.add(DIFFICULTY, data));
+        long mined = System.nanoTime();
+        String hash = node.readChain(BlockChain::getChainHash);
+        for (ServerModel other : nodes) {
+            while (!other.readChain(BlockChain::getChainHash).equals(hash)) {
+                if (System.nanoTime() - mined > TIMEOUT_NANOS)
+                    return -1;
+                LockSupport.parkNanos(50_000);
+            }
+        }
+        return System.nanoTime() - mined;
+    }
+}
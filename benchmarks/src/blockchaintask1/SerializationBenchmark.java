@@ -0,0 +1,59 @@
+package blockchaintask1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Gson serialization done by {@link Block#toString()} and {@link BlockChain#toString()},
+ * which is what the server sends back for choice 3 (view the blockchain).
+ * A verified chain serves its blocks from its JSON cache, up to -Djson.cacheBlocks of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int chainSize;
+
+    private BlockChain blockChain;
+    private BlockChain verifiedChain;
+    private Block block;
+
+    @Setup
+    public void buildChain() {
+        blockChain = BenchmarkChains.build(chainSize);
+        block = blockChain.getLatestBlock();
+        verifiedChain = BenchmarkChains.build(chainSize);
+        verifiedChain.isChainValid(true);
+    }
+
+    @Benchmark
+    public String blockToString() {
+        return block.toString();
+    }
+
+    @Benchmark
+    public String blockChainToString() {
+        return blockChain.toString();
+    }
+
+    @Benchmark
+    public String verifiedBlockChainToString() {
+        return verifiedChain.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package blockchaintask1;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+
+/**
+ * StoreBenchmark measures how long a {@link BlockStore} takes to open a large chain.
+ * It writes a chain of difficulty 0 blocks (so that no time goes into mining), closes the store, and times
+ * opening it again from its checkpoint. It then appends more blocks without closing the store, as a crash would
+ * leave it, and times opening it again, which scans the records written after the last checkpoint.
+ * Finally it deletes the checkpoint and times a full scan of the log for comparison.
+ * With "mapped" it writes the chain to a {@link MappedBlockStore} instead, printing the heap in use as the chain
+ * grows, and times opening it again and reading every header.
+ * Usage: StoreBenchmark [number of blocks, 1000000 by default] [log or mapped, log by default]
+ * [store directory, a temporary one by default]
+ */
+public class StoreBenchmark {
+    private static final int UNCHECKPOINTED_BLOCKS = 10000;
+
+    public static void main(String[] args) throws IOException {
+        int blockCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path directory = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("block-store");
+        if (args.length > 1 && args[1].equals("mapped"))
+            benchmarkMapped(blockCount, directory);
+        else
+            benchmarkLog(blockCount, directory);
+    }
+
+    private static void benchmarkLog(int blockCount, Path directory) throws IOException {
+        long start = System.nanoTime();
+        BlockStore store = open(directory, Integer.MAX_VALUE);
+        String hash = append(store, 0, blockCount, "");
+        store.close();
+        System.out.printf("Wrote %d blocks in %d milliseconds%n", blockCount, elapsedMillis(start));
+
+        start = System.nanoTime();
+        store = open(directory, Integer.MAX_VALUE);
+        System.out.printf("Opened %d blocks from the checkpoint in %d milliseconds%n", store.size(),
+                elapsedMillis(start));
+
+        // Leave records after the checkpoint, as a crash would
+        append(store, blockCount, UNCHECKPOINTED_BLOCKS, hash);
+        start = System.nanoTime();
+        store = open(directory, Integer.MAX_VALUE);
+        System.out.printf("Opened %d blocks with %d records after the checkpoint in %d milliseconds%n", store.size(),
+                UNCHECKPOINTED_BLOCKS, elapsedMillis(start));
+        store.close();
+
+        Files.delete(directory.resolve("checkpoint"));
+        start = System.nanoTime();
+        store = open(directory, Integer.MAX_VALUE);
+        System.out.printf("Opened %d blocks by scanning the whole log in %d milliseconds%n", store.size(),
+                elapsedMillis(start));
+        store.close();
+    }
+
+    private static void benchmarkMapped(int blockCount, Path directory) throws IOException {
+        long start = System.nanoTime();
+        MappedBlockStore store = new MappedBlockStore(directory, BlockStore.FsyncPolicy.NEVER, 0);
+        String hash = "";
+        int step = Math.max(1, blockCount / 4);
+        for (int written = 0; written < blockCount; written += step) {
+            hash = append(store, written, Math.min(step, blockCount - written), hash);
+            System.out.printf("%d blocks, %d KB of heap in use%n", store.size(), usedHeapKilobytes());
+        }
+        store.close();
+        System.out.printf("Wrote %d blocks in %d milliseconds%n", blockCount, elapsedMillis(start));
+
+        start = System.nanoTime();
+        store = new MappedBlockStore(directory, BlockStore.FsyncPolicy.NEVER, 0);
+        System.out.printf("Opened %d blocks in %d milliseconds%n", store.size(), elapsedMillis(start));
+        start = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < store.size(); i++)
+            checksum += store.getDifficulty(i) + store.getNonce(i);
+        System.out.printf("Read every header in %d milliseconds, checksum %d%n", elapsedMillis(start), checksum);
+        store.close();
+    }
+
+    private static long usedHeapKilobytes() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+
+    private static BlockStore open(Path directory, int checkpointInterval) throws IOException {
+        return new BlockStore(directory, BlockStore.FsyncPolicy.NEVER, 0, 64L * 1024 * 1024, checkpointInterval);
+    }
+
+    /**
+     * Appends valid difficulty 0 blocks
+     * @return hash of the last block
+     */
+    private static String append(ChainStore store, int from, int n, String previousHash) {
+        for (int i = from; i < from + n; i++) {
+            Block block = new Block(i, new Timestamp(System.currentTimeMillis()), "Transaction " + i, 0);
+            block.setPreviousHash(previousHash);
+            block.setNonce(BigInteger.ZERO);
+            previousHash = block.calculateHash();
+            store.append(block, previousHash);
+        }
+        return previousHash;
+    }
+
+    private static long elapsedMillis(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
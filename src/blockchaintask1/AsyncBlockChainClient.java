@@ -0,0 +1,358 @@
+package blockchaintask1;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * AsyncBlockChainClient is the thread safe, non-blocking counterpart of {@link BlockChainClient}, for programs
+ * that drive a {@link BlockChainServerTCP} from many threads at once.
+ * Every method sends its request at once and returns a {@link CompletableFuture} of the response. Requests share
+ * a pool of connections: each request goes to the connection with the fewest requests waiting, and is matched back
+ * to its future by its correlation id. Each connection has one thread reading its responses, so the number of
+ * threads depends on the pool size, not on the number of requests in flight.
+ * The server answers the requests of a connection in order, so a slow request, like mining a block of a high
+ * difficulty, delays the ones behind it on the same connection. More connections let the others go around it.
+ * A request that gets no response within its timeout fails with a {@link TimeoutException}, and its response is
+ * dropped if it comes later. When a connection breaks, the requests waiting on it fail with the IOException, and
+ * the next request opens a new connection in its place. Requests are not sent again, since a block could be added
+ * twice. A connection is opened by its reading thread, and the requests given to it meanwhile are written once it
+ * is open, so a slow or unreachable server never blocks the threads calling the client.
+ * The futures are completed by the reading threads, so callbacks that take long should use the *Async variants of
+ * {@link CompletableFuture}, not to hold up the other responses of their connection.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/CompletableFuture.html
+ */
+public class AsyncBlockChainClient implements Closeable {
+    private final String hostName;
+    private final int port;
+    private final byte format;
+    private final long timeoutMillis;
+    private final Connection[] connections;
+    private final AtomicInteger nextCorrelationId = new AtomicInteger(1);
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed;
+
+    /**
+     * A request sent on a connection, waiting for its response
+     */
+    private static class Call {
+        final Request request;
+        final Consumer<String> pages;   // Receives the STATUS_PARTIAL frames, null if the request has none
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+
+        Call(Request request, Consumer<String> pages) {
+            this.request = request;
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * One connection of the pool, and the requests waiting on it
+     */
+    private class Connection {
+        final CompletableFuture<Void> opened = new CompletableFuture<>();
+        final Map<Integer, Call> pending = new ConcurrentHashMap<>();
+        FrameConnection frames;     // Guarded by this connection, null until it is open
+        boolean broken;             // Guarded by this connection
+
+        /**
+         * Starts the thread that opens the connection and reads its responses
+         */
+        Connection(int slot) {
+            Thread reader = new Thread(this::openAndRead, "async-client-" + port + "-" + slot);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized boolean isBroken() {
+            return broken;
+        }
+
+        /**
+         * Registers a call and writes its request as soon as the connection is open
+         */
+        void send(Call call) {
+            synchronized (this) {
+                if (broken) {
+                    call.future.completeExceptionally(new EOFException("Connection closed"));
+                    return;
+                }
+                pending.put(call.request.getCorrelationId(), call);
+            }
+            // Written by the calling thread when the connection is open, by the reading thread once it opens if not
+            opened.thenRun(() -> write(call));
+        }
+
+        /**
+         * Writes the request of a call that is still waiting, writers take turns on the connection
+         */
+        private synchronized void write(Call call) {
+            if (broken || pending.get(call.request.getCorrelationId()) != call)
+                return;     // Failed or timed out while the connection was opening
+            try {
+                frames.writeRequest(call.request);
+            } catch (IOException e) {
+                pending.remove(call.request.getCorrelationId());
+                fail(e);
+                call.future.completeExceptionally(e);
+            }
+        }
+
+        private void openAndRead() {
+            FrameConnection connected;
+            try {
+                connected = new FrameConnection(new Socket(hostName, port), format);
+            } catch (IOException e) {
+                fail(e);
+                opened.completeExceptionally(e);
+                return;
+            }
+            synchronized (this) {
+                if (broken) {
+                    // The client was closed while connecting
+                    closeQuietly(connected);
+                    opened.completeExceptionally(new EOFException("Connection closed"));
+                    return;
+                }
+                frames = connected;
+            }
+            opened.complete(null);
+            readResponses(connected);
+        }
+
+        private void readResponses(FrameConnection frames) {
+            try {
+                while (true) {
+                    Response response = frames.readResponse();
+                    int id = response.getCorrelationId();
+                    Call call = pending.get(id);
+                    if (call == null)
+                        continue;   // Its request timed out
+                    if (response.isPartial()) {
+                        if (call.pages != null)
+                            call.pages.accept(response.getText());
+                        continue;
+                    }
+                    pending.remove(id);
+                    call.future.complete(response);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new IOException("Failed to read a response", e));
+            }
+        }
+
+        /**
+         * Closes the connection and fails every request waiting on it. No request is added once it is broken
+         */
+        void fail(IOException e) {
+            FrameConnection open;
+            synchronized (this) {
+                if (broken)
+                    return;
+                broken = true;
+                open = frames;
+            }
+            if (open != null)
+                closeQuietly(open);
+            for (Integer id : pending.keySet()) {
+                Call call = pending.remove(id);
+                if (call != null)
+                    call.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static void closeQuietly(FrameConnection frames) {
+        try {
+            frames.close();
+        } catch (IOException ignored) {
+            // The connection is dropped anyway
+        }
+    }
+
+    /**
+     * Creates a client with 4 connections, the binary format and a timeout of 30 seconds. Connections are opened
+     * as the requests need them
+     * @param hostName Host of the server
+     * @param port Port of the server
+     */
+    public AsyncBlockChainClient(String hostName, int port) {
+        this(hostName, port, 4, 30000, WireProtocol.FORMAT_BINARY);
+    }
+
+    /**
+     * @param hostName Host of the server
+     * @param port Port of the server
+     * @param poolSize Most connections opened to the server, at least 1
+     * @param timeoutMillis Time a request may wait for its response, 0 for no limit
+     * @param format WireProtocol.FORMAT_BINARY or WireProtocol.FORMAT_JSON
+     */
+    public AsyncBlockChainClient(String hostName, int port, int poolSize, long timeoutMillis, byte format) {
+        if (poolSize < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        this.hostName = hostName;
+        this.port = port;
+        this.format = format;
+        this.timeoutMillis = timeoutMillis;
+        connections = new Connection[poolSize];
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "async-client-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sends a request with the client's timeout
+     * @param request Request to send. Its correlation id is replaced
+     * @return the server's response, or a future failed with an IOException or a TimeoutException
+     */
+    public CompletableFuture<Response> call(Request request) {
+        return call(request, timeoutMillis, null);
+    }
+
+    /**
+     * Sends a request
+     * @param request Request to send. Its correlation id is replaced
+     * @param timeoutMillis Time the request may wait for its response, 0 for no limit
+     * @param pages Receives the pages of a streamed response, null if there are none
+     * @return the server's last response, or a future failed with an IOException or a TimeoutException
+     */
+    public CompletableFuture<Response> call(Request request, long timeoutMillis, Consumer<String> pages) {
+        request.setCorrelationId(nextCorrelationId.getAndIncrement());
+        Call call = new Call(request, pages);
+        Connection connection;
+        try {
+            connection = connection();
+        } catch (IOException e) {
+            call.future.completeExceptionally(e);
+            return call.future;
+        }
+        connection.send(call);
+        if (timeoutMillis > 0) {
+            ScheduledFuture<?> timeout = timer.schedule(() -> {
+                if (connection.pending.remove(request.getCorrelationId(), call))
+                    call.future.completeExceptionally(new TimeoutException("No response to " + request.getCommand()
+                            + " within " + timeoutMillis + " milliseconds"));
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            call.future.whenComplete((response, e) -> timeout.cancel(false));
+        }
+        return call.future;
+    }
+
+    public CompletableFuture<Response> status() {
+        return call(Request.status());
+    }
+
+    public CompletableFuture<Response> add(int difficulty, String data) {
+        return call(Request.add(difficulty, data));
+    }
+
+    public CompletableFuture<Response> addBatch(int difficulty, List<String> transactions) {
+        return call(Request.addBatch(difficulty, transactions));
+    }
+
+    public CompletableFuture<Response> verify() {
+        return call(Request.verify());
+    }
+
+    public CompletableFuture<Response> view() {
+        return call(Request.view());
+    }
+
+    public CompletableFuture<Response> repair() {
+        return call(Request.repair());
+    }
+
+    /**
+     * Streams a range of blocks, see {@link BlockChainClient#viewRange}
+     * @param pages Receives each page on the connection's reading thread
+     */
+    public CompletableFuture<Response> viewRange(int from, int count, Consumer<String> pages) {
+        return call(Request.viewRange(from, count), timeoutMillis, pages);
+    }
+
+    /**
+     * Queues a transaction in the server's mempool without waiting for it to be mined
+     * @return the transaction id, or a future failed with an IOException if the server rejected it
+     */
+    public CompletableFuture<Long> submit(String data) {
+        return call(Request.submit(data)).thenCompose(response -> {
+            CompletableFuture<Long> id = new CompletableFuture<>();
+            if (!response.isOk()) {
+                id.completeExceptionally(new IOException(response.getText()));
+            } else {
+                String text = response.getText().trim();
+                id.complete(Long.parseLong(text.substring(text.lastIndexOf(' ') + 1)));
+            }
+            return id;
+        });
+    }
+
+    public CompletableFuture<Response> transactionStatus(long transactionId, long waitMillis) {
+        return call(Request.transactionStatus(transactionId, waitMillis));
+    }
+
+    public CompletableFuture<Response> getBlock(String hash) {
+        return call(Request.getBlock(hash));
+    }
+
+    public CompletableFuture<Response> getTransaction(String hash) {
+        return call(Request.getTransaction(hash));
+    }
+
+    /**
+     * Picks the connection with the fewest requests waiting, opening one in the place of a missing or broken one.
+     * Opening only starts the connection's thread, the socket is connected on that thread, not under this lock
+     */
+    private synchronized Connection connection() throws IOException {
+        if (closed)
+            throw new IOException("Client closed");
+        Connection best = null;
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[i];
+            if (connection == null || connection.isBroken()) {
+                // Only opened when every open connection is busy, a client used by one thread keeps one
+                if (best != null && best.pending.isEmpty())
+                    break;
+                connection = new Connection(i);
+                connections[i] = connection;
+                return connection;
+            }
+            if (best == null || connection.pending.size() < best.pending.size())
+                best = connection;
+        }
+        return best;
+    }
+
+    /**
+     * Closes every connection, failing the requests still waiting
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        for (Connection connection : connections) {
+            if (connection != null)
+                connection.fail(new IOException("Client closed"));
+        }
+        timer.shutdownNow();
+    }
+}
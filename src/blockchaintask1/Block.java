@@ -1,16 +1,19 @@
 package blockchaintask1;
 
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
 import java.math.BigInteger;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class represents a simple Block.
  * Each Block object has an index - the position of the block on the chain. The first block (the so called Genesis block) has an index of 0.
  * Each block has a timestamp - a Java Timestamp object, it holds the time of the block's creation.
  * Each block has a field named data - a String holding the block's single transaction details.
+ * A block can instead hold a list of transactions. It then has no data, and its header commits to the transactions
+ * through their Merkle root (see {@link MerkleTree}), which takes the place of the data in the hash.
  * Each block has a String field named previousHash - the SHA256 hash of a block's parent.
  * This is also called a hash pointer. Each block holds a nonce - a BigInteger value determined by a proof of work routine.
  * This has to be found by the proof of work logic. It has to be found so that this block has a hash of the proper difficulty.
@@ -19,6 +22,12 @@ import java.sql.Timestamp;
  * The hash is represented in hexadecimal.
  * If, for example, the difficulty is 3, the hash must have at least three leading hex 0's (or,1 and 1/2 bytes).
  * Each hex digit represents 4 bits.
+ * A block can also have a fractional difficulty, given by its "bits": the compact form of a numeric target its hash
+ * must not exceed, see {@link DifficultyTarget}. Its difficulty is then the whole part, and the bits are hashed
+ * after it. A block whose bits are 0 only has its whole difficulty, and hashes as it always did.
+ * A block that is part of a {@link BlockChain} tells the chain whenever one of its fields is changed, so that the
+ * chain knows it must verify the block again, and before its difficulty or bits change, so that the chain can
+ * correct its running total of work.
  *
  * References:
  * 1. https://www.andrew.cmu.edu/course/95-702/examples/javadoc/blockchaintask0/Block.html
@@ -26,6 +35,7 @@ import java.sql.Timestamp;
  * 3. http://www.java2s.com/Code/Jar/g/Downloadgson222jar.htm
  * 4. https://www.java67.com/2016/10/3-ways-to-convert-string-to-json-object-in-java.html
  * 5. https://howtodoinjava.com/gson/gson-serializedname/
+ * 6. https://en.wikipedia.org/wiki/Merkle_tree
  */
 public class Block {
     private int index;
@@ -36,12 +46,23 @@ public class Block {
     @SerializedName(value = "Tx ")
     private String data;
 
+    @SerializedName(value = "Txs")
+    private List<String> transactions;
+
+    @SerializedName(value = "MerkleRoot")
+    private String merkleRoot;
+
     private int difficulty;
 
+    @SerializedName(value = "Bits")
+    private int bits;
+
     @SerializedName(value = "PrevHash")
     private String previousHash;
     private BigInteger nonce;
 
+    private transient BlockChain chain;    // Chain holding this block, told about every change
+
     /**
      * This the Block constructor.
      * @param index Position within the chain. Genesis is at 0
@@ -57,36 +78,72 @@ public class Block {
         previousHash = "";
     }
 
+    /**
+     * This constructor creates a block holding several transactions, committed through their Merkle root.
+     * @param index Position within the chain. Genesis is at 0
+     * @param timestamp  Time this block was added
+     * @param transactions Transactions to be included on the blockchain, in order
+     * @param difficulty This is the number of leftmost nibbles that need to be 0
+     */
+    Block(int index, Timestamp timestamp, List<String> transactions, int difficulty) {
+        this(index, timestamp, (String) null, difficulty);
+        this.transactions = new ArrayList<>(transactions);
+        merkleRoot = MerkleTree.root(this.transactions);
+    }
+
     /**
      * This method computes a hash of the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty.
+     * For a block holding several transactions the Merkle root is used in place of the data.
      * @return a String holding Hexadecimal characters
      */
     public String calculateHash() {
-        String concatenatedString = index + timestamp.toString() + data + previousHash + nonce + difficulty;
         // Call utility method to compute hash
-        return Utils.getSHA256Hash(concatenatedString);
+        return Utils.getSHA256Hash(getHashInput());
+    }
+
+    /**
+     * @return the concatenation of the index, timestamp, data or Merkle root, previousHash, nonce, and difficulty
+     */
+    String getHashInput() {
+        return index + timestamp.toString() + getHeaderData() + previousHash + nonce + getDifficultySuffix();
     }
 
     /**
-     * The proof of work methods finds a good hash. It increments the nonce until it produces a good hash.
-     * This method calls calculateHash() to compute a hash of the concatenation of the index, timestamp, data,
-     * previousHash, nonce, and difficulty.
-     * If the hash has the appropriate number of leading hex zeroes, it is done and returns that proper hash.
-     * If the hash does not have the appropriate number of leading hex zeroes, it increments the nonce by 1 and tries again.
+     * @return what is hashed after the nonce: the difficulty, followed by ":" and the bits if the block has a target
+     */
+    String getDifficultySuffix() {
+        return bits == 0 ? Integer.toString(difficulty) : difficulty + ":" + bits;
+    }
+
+    /**
+     * The proof of work methods finds a good hash. It searches for a nonce that produces a good hash.
+     * The search is done by {@link Miner}, either on the calling thread by incrementing the nonce from 0,
+     * or by splitting the nonce space across a pool of worker threads, depending on {@link Miner#getMode()}.
+     * A good hash is a hash of the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty
+     * that has the appropriate number of leading hex zeroes.
      * It continues this process, burning electricity and CPU cycles, until it gets lucky and finds a good hash.
+     * The winning nonce is stored in this block.
      * @return a String with a hash that has the appropriate number of leading hex zeroes.
      * The difficulty value is already in the block.
      * This is the minimum number of hex 0's a proper hash must have.
      */
     public String proofOfWork() {
-        nonce = new BigInteger("-1");
-        String hash;
-        do {
-            nonce = nonce.add(BigInteger.ONE);
-            hash = calculateHash();
-        } while (!Utils.hasLeadingZeroes(hash, difficulty));
+        MiningResult result = Miner.mine(this);
+        nonce = result.getNonce();
+        changed();
+        return result.getHash();
+    }
+
+    /**
+     * Sets the chain this block belongs to, which is then told about every change of the block
+     */
+    void setChain(BlockChain chain) {
+        this.chain = chain;
+    }
 
-        return hash;
+    private void changed() {
+        if (chain != null)
+            chain.blockChanged(index);
     }
 
     // Getters and setters for attributes
@@ -97,6 +154,7 @@ public class Block {
 
     public void setIndex(int index) {
         this.index = index;
+        changed();
     }
 
     public Timestamp getTimestamp() {
@@ -105,6 +163,7 @@ public class Block {
 
     public void setTimestamp(Timestamp timestamp) {
         this.timestamp = timestamp;
+        changed();
     }
 
     public String getData() {
@@ -113,6 +172,57 @@ public class Block {
 
     public void setData(String data) {
         this.data = data;
+        changed();
+    }
+
+    /**
+     * @return the transactions of a block holding several of them, or null for a single transaction block
+     */
+    public List<String> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Replaces the transactions without updating the Merkle root, used when a stored block is read back
+     * @param transactions transactions of the block, or null for a single transaction block
+     */
+    void setTransactions(List<String> transactions) {
+        this.transactions = transactions;
+    }
+
+    /**
+     * Replaces one transaction of a block holding several of them. The Merkle root is not updated,
+     * so the block no longer matches its header until it is repaired.
+     * @param i position of the transaction in the block
+     * @param transaction new transaction
+     */
+    public void setTransaction(int i, String transaction) {
+        transactions.set(i, transaction);
+        changed();
+    }
+
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public void setMerkleRoot(String merkleRoot) {
+        this.merkleRoot = merkleRoot;
+        changed();
+    }
+
+    /**
+     * @return the value hashed between the timestamp and the previous hash:
+     * the Merkle root for a block holding several transactions, the data otherwise
+     */
+    public String getHeaderData() {
+        return transactions != null ? merkleRoot : data;
+    }
+
+    /**
+     * @return true if this block holds a single transaction, or if its Merkle root matches its transactions
+     */
+    public boolean hasValidMerkleRoot() {
+        return transactions == null || MerkleTree.matches(transactions, merkleRoot);
     }
 
     public int getDifficulty() {
@@ -120,7 +230,28 @@ public class Block {
     }
 
     public void setDifficulty(int difficulty) {
+        if (chain != null)
+            chain.workChanged(this, difficulty, bits);
         this.difficulty = difficulty;
+        changed();
+    }
+
+    /**
+     * @return the compact target of the block, 0 if the block only has a whole difficulty
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Gives the block a fractional difficulty
+     * @param bits compact target, see {@link DifficultyTarget}, or 0 to only use the whole difficulty
+     */
+    public void setBits(int bits) {
+        if (chain != null)
+            chain.workChanged(this, difficulty, bits);
+        this.bits = bits;
+        changed();
     }
 
     public BigInteger getNonce() {
@@ -129,6 +260,7 @@ public class Block {
 
     public void setNonce(BigInteger nonce) {
         this.nonce = nonce;
+        changed();
     }
 
     public String getPreviousHash() {
@@ -137,6 +269,7 @@ public class Block {
 
     public void setPreviousHash(String previousHash) {
         this.previousHash = previousHash;
+        changed();
     }
 
     /**
@@ -145,6 +278,6 @@ public class Block {
      */
     @Override
     public String toString() {
-        return new Gson().toJson(this);
+        return BlockJson.toJson(this);
     }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package blockchaintask1;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BlockAssembler is the background miner of the server. It drains the {@link Mempool} into blocks:
+ * a block is mined as soon as it is full, or when the oldest waiting transaction has waited long enough.
+ * Mining happens on this thread, so a client submitting a transaction gets its id back right away
+ * instead of waiting for the proof of work.
+ * The sizes are set with -Dmempool.blockSize (transactions per block, 100 by default),
+ * -Dmempool.maxWaitMillis (1000 by default) and -Dmempool.difficulty (3 by default).
+ */
+public class BlockAssembler implements Runnable {
+    private final Mempool mempool;
+    private final ServerModel serverModel;
+    private final int maxTransactions;
+    private final long maxWaitMillis;
+    private final int difficulty;
+
+    /**
+     * @param mempool Mempool to drain
+     * @param serverModel Model whose chain receives the blocks
+     * @param maxTransactions Most transactions in one block
+     * @param maxWaitMillis How long the first transaction of a block may wait for others to join it
+     * @param difficulty Difficulty of the assembled blocks
+     * @throws IllegalArgumentException if the difficulty is not from 0 to 64
+     */
+    public BlockAssembler(Mempool mempool, ServerModel serverModel, int maxTransactions, long maxWaitMillis,
+                          int difficulty) {
+        ServerModel.checkDifficulty(difficulty);
+        this.mempool = mempool;
+        this.serverModel = serverModel;
+        this.maxTransactions = maxTransactions;
+        this.maxWaitMillis = maxWaitMillis;
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * Creates an assembler configured from the mempool.* system properties
+     */
+    public static BlockAssembler fromSystemProperties(Mempool mempool, ServerModel serverModel) {
+        return new BlockAssembler(mempool, serverModel,
+                Integer.getInteger("mempool.blockSize", 100),
+                Long.getLong("mempool.maxWaitMillis", 1000),
+                Integer.getInteger("mempool.difficulty", 3));
+    }
+
+    /**
+     * Assembles blocks until the thread is interrupted
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Mempool.PendingTransaction> batch = null;
+            try {
+                batch = withoutRepeats(mempool.drain(maxTransactions, maxWaitMillis));
+                serverModel.appendTransactions(batch, difficulty);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // Keep assembling, one bad block should not stop the server from mining. Its transactions are
+                // marked failed so that clients waiting for them are told. A block given up because the server
+                // shuts down is not an error
+                if (batch != null)
+                    mempool.fail(batch);
+                if (!Thread.currentThread().isInterrupted())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Two equal transactions in one block could leave it without a Merkle root, see {@link MerkleTree}, so a
+     * transaction repeating one of the batch is put back for the next block
+     * @return the batch without its repeats
+     */
+    private List<Mempool.PendingTransaction> withoutRepeats(List<Mempool.PendingTransaction> batch) {
+        Set<String> seen = new HashSet<>();
+        List<Mempool.PendingTransaction> distinct = new ArrayList<>(batch.size());
+        List<Mempool.PendingTransaction> repeats = new ArrayList<>();
+        for (Mempool.PendingTransaction transaction : batch) {
+            if (seen.add(transaction.getData()))
+                distinct.add(transaction);
+            else
+                repeats.add(transaction);
+        }
+        if (!repeats.isEmpty())
+            mempool.requeue(repeats);
+        return distinct;
+    }
+}
@@ -1,22 +1,39 @@
 package blockchaintask1;
 
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
+import java.math.BigInteger;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * This class represents a simple BlockChain.
  * It holds a collection of {@link Block } instances and allows the user to perform operations in them.
  * It also maintains an instance variable holding the approximate number of hashes per second on this computer.
- * BlockChain has exactly three instance members:
- * 1. An ArrayList to hold Blocks
- * 2. A chain hash to hold a SHA256 hash of the most recently added Block
- * 3. Estimated average number of hashes per second
- * 4. https://mkyong.com/java/java-how-to-convert-system-nanotime-to-seconds/
- * 5. https://howtodoinjava.com/gson/gson-serializedname/
+ * A chain can also be kept in a {@link ChainStore}, which then holds the blocks instead of the ArrayList
+ * and is told about every change, so that the chain survives a restart.
+ * When a target block interval is set, with -Dchain.targetBlockMillis or {@link #setTargetBlockInterval}, the chain
+ * retargets the difficulty of every block it adds from the timestamps of the recent blocks, with a fractional
+ * difficulty (see {@link DifficultyTarget}), so that blocks keep coming at that interval however fast the miner is.
+ * The total difficulty and the total work of the chain are running totals, updated as blocks are added and
+ * corrected when a block's difficulty changes, so reporting them does not walk the chain.
+ * Blocks can be found by their hash, by the hash of their parent and by the hash of one of their transactions
+ * through {@link HashIndex}es, kept up to date as blocks are added and repaired. A transaction index holds one block
+ * per transaction, the latest, so the earlier blocks holding the same transaction are kept aside, to be found once
+ * the latest one is dropped or changed.
+ * Blocks mined by other nodes join the chain through {@link #appendMined(Block)}, and a fork of another node
+ * replaces the end of the chain through {@link #switchTo(int, List)} when it holds more work.
+ * Only the blocks, the chain hash and the hashes per second are serialized. Every other member is transient: the
+ * store, the retargeting settings, and the running totals, indexes and caches, which are rebuilt from the blocks.
+ *
+ * References:
+ * 1. https://mkyong.com/java/java-how-to-convert-system-nanotime-to-seconds/
+ * 2. https://howtodoinjava.com/gson/gson-serializedname/
  */
 public class BlockChain {
 
@@ -26,6 +43,27 @@ public class BlockChain {
     private String chainHash;   //holds SHA-256 hash of the most recently added Block
     private int hashesPerSecond;
 
+    private transient ChainStore store;    // Where the blocks are persisted, null for an in-memory chain
+    private transient volatile int verifiedCount;  // Number of blocks from the genesis block on known to be valid
+    private transient long targetBlockMillis = Long.getLong("chain.targetBlockMillis", 0);  // 0 to not retarget
+    private transient int retargetWindow = Integer.getInteger("chain.retargetWindow", 16);
+    // Running totals of the first countedBlocks blocks; a chain opened from a store counts its blocks once, when
+    // the totals are first asked for
+    private transient int countedBlocks;
+    private transient long totalDifficulty;
+    private transient BigInteger totalWork = BigInteger.ZERO;
+    // Hash indexes of the first indexedBlocks blocks, caught up like the running totals
+    private final transient HashIndex blocksByHash = new HashIndex();
+    private final transient HashIndex blocksByPreviousHash = new HashIndex();
+    private final transient HashIndex blocksByTransaction = new HashIndex();
+    // Earlier blocks holding a transaction that a later block holds too, by upper case transaction hash. Repeated
+    // transactions are rare, so it stays small
+    private final transient Map<String, List<Integer>> earlierBlocksByTransaction = new HashMap<>();
+    private transient int indexedBlocks;
+    // JSON of verified blocks, which do not change until one of them is corrupted
+    private final transient BlockJson.Cache jsonCache =
+            new BlockJson.Cache(Integer.getInteger("json.cacheBlocks", 10000));
+
     /**
      * This constructor creates an empty ArrayList for Block storage.
      * It also sets the chain hash to the empty string and sets hashes per second to 0.
@@ -36,6 +74,18 @@ public class BlockChain {
         hashesPerSecond = 0;
     }
 
+    /**
+     * This constructor opens the chain held by a store, without reading its blocks.
+     * The chain hash is the one saved with the store, hashes per second is set to 0.
+     * @param store Store holding the chain, every later change of the chain is written to it
+     */
+    public BlockChain(ChainStore store) {
+        this.store = store;
+        blocks = store.getBlocks();
+        chainHash = store.getChainHash();
+        hashesPerSecond = 0;
+    }
+
     public String getChainHash() {
         return chainHash;
     }
@@ -49,7 +99,7 @@ public class BlockChain {
     }
 
     public Block getLatestBlock() {
-        return blocks.get(blocks.size() - 1);
+        return getBlock(blocks.size() - 1);
     }
 
     public int getChainSize() {
@@ -82,28 +132,437 @@ public class BlockChain {
         return hashesPerSecond;
     }
 
+    /**
+     * Makes the chain retarget the difficulty of the blocks it adds
+     * @param millis Time wanted between two blocks, 0 to keep the difficulty each block is created with
+     * @param window Number of recent block intervals the difficulty is computed from
+     */
+    public void setTargetBlockInterval(long millis, int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("The retarget window must hold at least one block interval");
+        targetBlockMillis = millis;
+        retargetWindow = window;
+    }
+
+    /**
+     * @return time wanted between two blocks, 0 if the chain does not retarget the difficulty
+     */
+    public long getTargetBlockMillis() {
+        return targetBlockMillis;
+    }
+
+    /**
+     * Computes the target of the next block from the last retargetWindow intervals between blocks.
+     * The time between a block and the next one is about the time it took to mine the block, so the expected work
+     * of those blocks is scaled by the target interval over the time they actually took.
+     * A window that took less than a quarter or more than four times the target time counts as a quarter or four
+     * times, so that one burst of blocks, or one long pause, cannot swing the difficulty too far at once.
+     *
+     * @return the compact bits for the next block, 0 if the chain does not retarget or has fewer than two blocks
+     */
+    public int getNextBits() {
+        int size = getChainSize();
+        int intervals = Math.min(retargetWindow, size - 1);
+        if (targetBlockMillis <= 0 || intervals < 1)
+            return 0;
+        long first = getBlock(size - 1 - intervals).getTimestamp().getTime();
+        long last = getBlock(size - 1).getTimestamp().getTime();
+        long expected = intervals * targetBlockMillis;
+        long actual = Math.max(expected / 4, Math.min(expected * 4, last - first));
+
+        // The intervals were spent mining the blocks before the last one
+        BigInteger work = BigInteger.ZERO;
+        for (int i = size - 1 - intervals; i < size - 1; i++)
+            work = work.add(DifficultyTarget.workOf(getBlock(i)));
+        BigInteger nextWork = work.multiply(BigInteger.valueOf(targetBlockMillis))
+                .divide(BigInteger.valueOf(Math.max(1, actual)));
+        return DifficultyTarget.bitsForWork(nextWork);
+    }
+
     /**
      * This method adds a new block to the blockchain
      * This new block's previous hash must hold the hash of the most recently added block.
      * After this call on addBlock, the new block becomes the most recently added block on the BlockChain.
+     * The proof of work is computed by the {@link Miner}, in whichever mode it is configured.
+     * If the chain retargets the difficulty, the block gets the target of {@link #getNextBits()} and its whole
+     * difficulty is replaced by the whole part of that target's difficulty.
      *
      * @param newBlock newBlock - is added to the BlockChain as the most recent block
      */
     public void addBlock(Block newBlock) {
-        String previousHash = chainHash;
-        newBlock.setPreviousHash(previousHash);
-        chainHash = newBlock.proofOfWork();
-        blocks.add(newBlock);
+        prepareBlock(newBlock);
+        append(newBlock, newBlock.proofOfWork());
+    }
+
+    /**
+     * Gives a block what it needs to follow the most recent block, before it is mined: the previous hash, and the
+     * target of {@link #getNextBits()} if the chain retargets the difficulty. The chain is not changed, so the
+     * block can be mined without holding up the chain and added with {@link #appendMined(Block)}
+     * @param newBlock Block whose index is the size of the chain
+     */
+    public void prepareBlock(Block newBlock) {
+        int bits = getNextBits();
+        if (bits != 0) {
+            newBlock.setBits(bits);
+            newBlock.setDifficulty((int) DifficultyTarget.difficultyOf(bits));
+        }
+        newBlock.setPreviousHash(chainHash);
+    }
+
+    /**
+     * Adds a block mined by another node, without mining it again
+     * @param block Block that follows the most recent block of the chain
+     * @return the hash of the block, which becomes the chain hash
+     * @throws IllegalArgumentException if the block does not follow the chain or its proof of work is wrong
+     */
+    public String appendMined(Block block) {
+        String hash = checkMined(block, getChainSize(), chainHash);
+        append(block, hash);
+        return hash;
+    }
+
+    /**
+     * Replaces the blocks of the chain from an index on by the blocks of a fork, if the fork holds more work.
+     * The blocks the fork shares with the chain are kept, and the fork is checked completely before the chain is
+     * changed. A fork with the same work as the chain is not taken, so every node keeps the chain it saw first.
+     *
+     * @param from Index of the first block of the fork. The fork follows the block before it, or starts at genesis
+     * @param fork Blocks mined by another node, in order
+     * @return true if the chain switched to the fork
+     * @throws IllegalArgumentException if the fork does not follow the chain or a proof of work is wrong
+     */
+    public boolean switchTo(int from, List<Block> fork) {
+        int size = getChainSize();
+        if (from < 0 || from > size)
+            throw new IllegalArgumentException("A fork cannot start at " + from + " on a chain of " + size + " blocks");
+        int shared = 0;
+        while (shared < fork.size() && from + shared < size
+                && fork.get(shared).calculateHash().equals(linkTo(from + shared)))
+            shared++;
+        int start = from + shared;
+
+        String previousHash = start == 0 ? "" : linkTo(start - 1);
+        List<String> hashes = new ArrayList<>(fork.size() - shared);
+        BigInteger forkWork = BigInteger.ZERO;
+        for (int j = shared; j < fork.size(); j++) {
+            Block block = fork.get(j);
+            previousHash = checkMined(block, from + j, previousHash);
+            hashes.add(previousHash);
+            forkWork = forkWork.add(DifficultyTarget.workOf(block));
+        }
+        BigInteger ownWork = BigInteger.ZERO;
+        for (int i = start; i < size; i++)
+            ownWork = ownWork.add(DifficultyTarget.workOf(getBlock(i)));
+        if (forkWork.compareTo(ownWork) <= 0)
+            return false;
+
+        truncate(start);
+        for (int j = shared; j < fork.size(); j++)
+            append(fork.get(j), hashes.get(j - shared));
+        return true;
+    }
+
+    /**
+     * Checks a block mined by another node before it joins the chain
+     * @param block Block to check
+     * @param index Index the block must have
+     * @param previousHash Hash of the block it must follow, the empty String for a genesis block
+     * @return the hash of the block
+     * @throws IllegalArgumentException if the block is not at that place or its proof of work is wrong
+     */
+    private static String checkMined(Block block, int index, String previousHash) {
+        if (block.getIndex() != index)
+            throw new IllegalArgumentException("Block " + block.getIndex() + " is not at index " + index);
+        if (block.getTimestamp() == null || block.getNonce() == null)
+            throw new IllegalArgumentException("Block " + index + " was not mined");
+        if (!previousHash.equals(block.getPreviousHash()))
+            throw new IllegalArgumentException("Block " + index + " does not follow block " + previousHash);
+        if (block.getTransactions() != null && !MerkleTree.matches(block.getTransactions(), block.getMerkleRoot()))
+            throw new IllegalArgumentException("Block " + index + " does not match its Merkle root");
+        String hash = block.calculateHash();
+        if (!DifficultyTarget.isMet(block, hash))
+            throw new IllegalArgumentException("Block " + index + " does not meet its difficulty");
+        return hash;
+    }
+
+    /**
+     * Makes a mined block the most recent block of the chain
+     * @param block Block whose index is the size of the chain
+     * @param hash Hash of the block, which becomes the chain hash
+     */
+    private void append(Block block, String hash) {
+        chainHash = hash;
+        block.setChain(this);
+        if (store != null)
+            store.append(block, chainHash);
+        else
+            blocks.add(block);
+        counted(block);
+        indexed(block, chainHash);
+    }
+
+    /**
+     * Drops the blocks from an index on, before a fork takes their places
+     * @param size Number of blocks kept
+     */
+    private void truncate(int size) {
+        int oldSize = getChainSize();
+        if (size >= oldSize)
+            return;
+        String hash = size == 0 ? "" : linkTo(size - 1);
+        for (int i = oldSize - 1; i >= size; i--) {
+            Block block = getBlock(i);
+            removed(block, linkTo(i));
+            block.setChain(null);
+        }
+        if (store != null)
+            store.truncate(size, hash);
+        else
+            blocks.subList(size, oldSize).clear();
+        chainHash = hash;
+        blockChanged(size);
+    }
+
+    /**
+     * Takes the last block of the chain out of the running totals and the hash indexes
+     * @param block Last block of the chain, about to be dropped
+     * @param hash Hash the chain links to the block by
+     */
+    private synchronized void removed(Block block, String hash) {
+        int index = block.getIndex();
+        if (index == countedBlocks - 1) {
+            totalDifficulty -= block.getDifficulty();
+            totalWork = totalWork.subtract(DifficultyTarget.workOf(block));
+            countedBlocks = index;
+        }
+        if (index == indexedBlocks - 1) {
+            blocksByHash.remove(hash, index);
+            blocksByPreviousHash.remove(block.getPreviousHash(), index);
+            for (String transaction : transactionsOf(block)) {
+                String transactionHash = Utils.getSHA256Hash(transaction);
+                blocksByTransaction.remove(transactionHash, index);
+                List<Integer> earlier = earlierBlocksByTransaction.get(transactionHash);
+                if (earlier != null) {
+                    earlier.removeIf(i -> i >= index);
+                    if (earlier.isEmpty())
+                        earlierBlocksByTransaction.remove(transactionHash);
+                }
+            }
+            indexedBlocks = index;
+        }
+    }
+
+    /**
+     * Adds a block just appended to the running totals, if every block before it is already counted
+     */
+    private synchronized void counted(Block block) {
+        if (block.getIndex() != countedBlocks)
+            return;
+        totalDifficulty += block.getDifficulty();
+        totalWork = totalWork.add(DifficultyTarget.workOf(block));
+        countedBlocks++;
+    }
+
+    /**
+     * Counts the blocks of the chain that are not in the running totals yet
+     */
+    private synchronized void countBlocks() {
+        int size = getChainSize();
+        while (countedBlocks < size)
+            counted(getBlock(countedBlocks));
+    }
+
+    /**
+     * Adds a block to the hash indexes, if every block before it is already indexed
+     * @param block Block of the chain
+     * @param hash Hash the chain links to the block by: the next block's previous hash, or the chain hash
+     */
+    private synchronized void indexed(Block block, String hash) {
+        if (block.getIndex() != indexedBlocks)
+            return;
+        int index = block.getIndex();
+        blocksByHash.put(hash, index);
+        blocksByPreviousHash.put(block.getPreviousHash(), index);
+        indexTransactions(block);
+        indexedBlocks++;
+    }
+
+    private void indexTransactions(Block block) {
+        int index = block.getIndex();
+        for (String transaction : transactionsOf(block)) {
+            String hash = Utils.getSHA256Hash(transaction);
+            int previous = blocksByTransaction.get(hash);
+            if (previous >= 0 && previous != index) {
+                List<Integer> earlier = earlierBlocksByTransaction.computeIfAbsent(hash, h -> new ArrayList<>(1));
+                if (!earlier.contains(previous))
+                    earlier.add(previous);
+            }
+            blocksByTransaction.put(hash, index);
+        }
+    }
+
+    /**
+     * Indexes the blocks of the chain that are not in the hash indexes yet
+     */
+    private synchronized void indexBlocks() {
+        int size = getChainSize();
+        while (indexedBlocks < size)
+            indexed(getBlock(indexedBlocks), linkTo(indexedBlocks));
+    }
+
+    /**
+     * Indexes the transactions of a block changed in place. The entries of the transactions it no longer holds
+     * are left behind, and skipped by {@link #indexOfTransaction(String)}
+     */
+    private synchronized void transactionsChanged(Block block) {
+        if (block.getIndex() < indexedBlocks)
+            indexTransactions(block);
+    }
+
+    /**
+     * Called by a {@link ChainRepairer} once it gave a block a new hash, before the next block links to it
+     * @param block Block repaired, with its new previous hash
+     * @param hash New hash of the block
+     */
+    synchronized void rehashed(Block block, String hash) {
+        int index = block.getIndex();
+        if (index >= indexedBlocks)
+            return;
+        // The old hash is still the one the chain links to the block by
+        String oldHash = linkTo(index);
+        blocksByHash.remove(oldHash, index);
+        blocksByPreviousHash.remove(oldHash, index + 1);
+        blocksByHash.put(hash, index);
+        blocksByPreviousHash.put(block.getPreviousHash(), index);
+    }
+
+    /**
+     * @return the hash the chain links to a block by: the next block's previous hash, or the chain hash
+     */
+    private String linkTo(int i) {
+        return i + 1 < getChainSize() ? getBlock(i + 1).getPreviousHash() : chainHash;
+    }
+
+    private static List<String> transactionsOf(Block block) {
+        if (block.getTransactions() != null)
+            return block.getTransactions();
+        return block.getData() == null ? Collections.<String>emptyList() : Collections.singletonList(block.getData());
+    }
+
+    /**
+     * Finds a block by its hash, the hash the chain links to it by, without walking the chain
+     * @param hash Hex hash of the block, in either case
+     * @return the index of the block, -1 if no block of the chain has this hash
+     */
+    public synchronized int indexOf(String hash) {
+        indexBlocks();
+        int index = blocksByHash.get(hash);
+        return index >= 0 && index < getChainSize() && linkTo(index).equalsIgnoreCase(hash) ? index : -1;
+    }
+
+    /**
+     * Finds the block whose parent has the given hash, without walking the chain
+     * @param hash Hex hash of the parent block, in either case
+     * @return the index of the child block, -1 if no block of the chain follows a block with this hash
+     */
+    public synchronized int indexOfChild(String hash) {
+        indexBlocks();
+        int index = blocksByPreviousHash.get(hash);
+        return index >= 0 && index < getChainSize() && getBlock(index).getPreviousHash().equalsIgnoreCase(hash)
+                ? index : -1;
+    }
+
+    /**
+     * Finds the block holding a transaction, by the SHA-256 hash of the transaction
+     * @param hash Hex hash of the transaction, in either case
+     * @return the index of the block, -1 if no block of the chain holds a transaction with this hash
+     */
+    public synchronized int indexOfTransaction(String hash) {
+        indexBlocks();
+        int index = blocksByTransaction.get(hash);
+        if (holdsTransaction(index, hash))
+            return index;
+        // The latest block holding the transaction was dropped or changed, an earlier one may still hold it
+        List<Integer> earlier = earlierBlocksByTransaction.get(hash.toUpperCase(Locale.ROOT));
+        if (earlier != null) {
+            for (int i = earlier.size() - 1; i >= 0; i--) {
+                if (holdsTransaction(earlier.get(i), hash))
+                    return earlier.get(i);
+            }
+        }
+        return -1;
+    }
+
+    private boolean holdsTransaction(int index, String hash) {
+        return index >= 0 && index < getChainSize() && positionOfTransaction(getBlock(index), hash) >= 0;
+    }
+
+    /**
+     * @param block Block to look in
+     * @param hash Hex hash of a transaction, in either case
+     * @return the position of the transaction in the block, -1 if the block does not hold it
+     */
+    public static int positionOfTransaction(Block block, String hash) {
+        List<String> transactions = transactionsOf(block);
+        for (int i = 0; i < transactions.size(); i++) {
+            if (Utils.getSHA256Hash(transactions.get(i)).equalsIgnoreCase(hash))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Called by a block of this chain before its difficulty or bits change, to correct the running totals
+     * @param block Block about to change, still holding its old difficulty and bits
+     * @param difficulty New whole difficulty of the block
+     * @param bits New compact target of the block
+     */
+    synchronized void workChanged(Block block, int difficulty, int bits) {
+        if (block.getIndex() >= countedBlocks)
+            return;
+        totalDifficulty += difficulty - block.getDifficulty();
+        totalWork = totalWork.add(DifficultyTarget.workOf(difficulty, bits)).subtract(DifficultyTarget.workOf(block));
+    }
+
+    /**
+     * Must be called after a block of the chain was changed in place, so that a persistent chain stores the change
+     * @param b Block that was changed
+     */
+    public void updateBlock(Block b) {
+        blockChanged(b.getIndex());
+        transactionsChanged(b);
+        if (store != null)
+            store.update(b);
     }
 
     /**
      * Overrides toString() and creates a JSON string representation of the entire blockchain
+     * The blocks found valid by the last verification are written from a cache when they can be, see {@link BlockJson}
      *
      * @return a String representation of the entire chain is returned.
      */
     @Override
     public String toString() {
-        return new Gson().toJson(this);
+        return BlockJson.toJson(this);
+    }
+
+    /**
+     * Returns the JSON of a block. The JSON of a verified block is kept, and handed out again until the block or a
+     * block before it changes
+     * @param i index of the block
+     * @return the same String as getBlock(i).toString()
+     */
+    public String getBlockJson(int i) {
+        boolean verified = i < verifiedCount;
+        if (verified) {
+            String json = jsonCache.get(i);
+            if (json != null)
+                return json;
+        }
+        String json = getBlock(i).toString();
+        if (verified)
+            jsonCache.put(i, json);
+        return json;
     }
 
     /**
@@ -113,32 +572,41 @@ public class BlockChain {
      * @return Instance of Block in the index i
      */
     public Block getBlock(int i) {
-        return blocks.get(i);
+        Block b = blocks.get(i);
+        // A stored chain may hand out a new instance, which must also report its changes
+        b.setChain(this);
+        return b;
     }
 
     /**
-     * Compute and return the total difficulty of all blocks on the chain. Each block knows its own difficulty
+     * Return the total difficulty of all blocks on the chain. Each block knows its own difficulty,
+     * and the chain keeps the running total
      *
-     * @return totalDifficulty
+     * @return totalDifficulty, a long since a long chain can add up to more than an int holds
      */
-    public int getTotalDifficulty() {
-        int totalDifficulty = 0;
-        for (Block block : blocks)
-            totalDifficulty += block.getDifficulty();
+    public synchronized long getTotalDifficulty() {
+        countBlocks();
         return totalDifficulty;
     }
 
     /**
-     * Compute and return the expected number of hashes required for the entire chain.
+     * Return the exact expected number of hashes required for the entire chain.
+     * The expected number of hashes for one block is 16 ^ (difficulty of that block), or the work of its target.
+     *
+     * @return the running total of the work of every block
+     */
+    public synchronized BigInteger getTotalWork() {
+        countBlocks();
+        return totalWork;
+    }
+
+    /**
+     * Return the expected number of hashes required for the entire chain, see {@link #getTotalWork()}
      *
      * @return totalExpectedHashes
      */
     public double getTotalExpectedHashes() {
-        double totalExpectedHashes = 0;
-        // expected number of hashes for one block = 16 ^ (difficulty of that block)
-        for (Block block : blocks)
-            totalExpectedHashes += Math.pow(16, block.getDifficulty());
-        return totalExpectedHashes;
+        return getTotalWork().doubleValue();
     }
 
     /**
@@ -148,88 +616,96 @@ public class BlockChain {
      * Otherwise, return true. If the chain has more blocks than one, begin checking from block one.
      * The first check will involve a computation of a hash in Block 0 and a comparison with the hash pointer in Block 1.
      * If they match and if the proof of work is correct, go and visit the next block in the chain. At the end, check that the chain hash is also correct.
+     * Blocks holding several transactions must also have a Merkle root that matches their transactions.
+     * Blocks found valid by an earlier check and not changed since are not checked again, see {@link #isChainValid(boolean)}.
      *
      * @return true if and only if the chain is valid
      */
     public boolean  isChainValid() {
-        int chainSize = getChainSize();
-        if (chainSize == 0)
-            return true;
-
-        boolean validityFlag = true;
-        Block genesis = getBlock(0);
-        String currentBlockHash = getComputedHashForBlock(genesis);
-
-        // Check only the leading zeroes for the genesis block
-        if (!Utils.hasLeadingZeroes(currentBlockHash, genesis.getDifficulty())) {
-            System.out.print("Improper hash on node 0, does not begin with ");
-            for (int i = 0; i < genesis.getDifficulty(); i++)
-                System.out.print("0");
-            System.out.println();
-            validityFlag = false;
-        }
+        return isChainValid(false);
+    }
 
-        for (int i = 1; i < chainSize; i++) {
-            Block nextBlock = getBlock(i);
-            // Check if previous hash matches the previousHash field of next block
-            if (!nextBlock.getPreviousHash().equals(currentBlockHash))
-                validityFlag = false;
+    /**
+     * Checks the chain like {@link #isChainValid()}.
+     * The chain remembers how many blocks from the genesis block on were found valid by the last check, and forgets
+     * the blocks from the first one that changed since. Unless asked to start from the genesis block, a check only
+     * verifies the blocks after that valid prefix, so checking a chain that only grew costs one hash per new block.
+     *
+     * @param fromGenesis true to verify every block again, false to start after the blocks known to be valid
+     * @return true if and only if the chain is valid
+     */
+    public boolean isChainValid(boolean fromGenesis) {
+        return validate(fromGenesis).isValid();
+    }
+
+    /**
+     * Checks the chain like {@link #isChainValid(boolean)}, with a {@link ChainValidator} that hashes the blocks
+     * on every core, and reports every invalid block instead of only whether the chain is valid.
+     *
+     * @param fromGenesis true to verify every block again, false to start after the blocks known to be valid
+     * @return the invalid blocks found and what is wrong with each
+     */
+    public ChainValidator.Result validate(boolean fromGenesis) {
+        int chainSize = getChainSize();
+        int start = fromGenesis ? 0 : Math.min(verifiedCount, chainSize);
+        ChainValidator.Result result = ChainValidator.validate(this, start);
 
-            // Check if current block shows correct proof of work
-            currentBlockHash = getComputedHashForBlock(nextBlock);
-            if (!Utils.hasLeadingZeroes(currentBlockHash, nextBlock.getDifficulty())) {
+        for (Map.Entry<Integer, Integer> problem : result.getProblems().entrySet()) {
+            int i = problem.getKey();
+            if ((problem.getValue() & ChainValidator.BAD_PROOF_OF_WORK) != 0 && getBlock(i).getBits() != 0) {
+                System.out.printf("Improper hash on node %d, it is above the block's target%n", i);
+            } else if ((problem.getValue() & ChainValidator.BAD_PROOF_OF_WORK) != 0) {
                 System.out.printf("Improper hash on node %d, does not begin with ", i);
-                for (int j = 0; j < nextBlock.getDifficulty(); j++)
+                for (int j = 0; j < getBlock(i).getDifficulty(); j++)
                     System.out.print("0");
                 System.out.println();
-                validityFlag = false;
             }
+            if ((problem.getValue() & ChainValidator.BAD_MERKLE_ROOT) != 0)
+                System.out.printf("Improper Merkle root on node %d, it does not match the block's transactions%n", i);
         }
-        return validityFlag;
+        // Everything before the first invalid block is known to be valid until one of those blocks changes
+        verifiedCount = result.isValid() ? chainSize : result.getFirstInvalid();
+        return result;
+    }
+
+    /**
+     * Called by a block of this chain when one of its fields changed, and by {@link #updateBlock(Block)}.
+     * The block and every block after it have to be verified again
+     * @param index index of the changed block
+     */
+    void blockChanged(int index) {
+        if (index < verifiedCount)
+            verifiedCount = index;
+        jsonCache.invalidateFrom(index);
     }
 
     /**
      * This routine repairs the chain. It checks the hashes of each block and ensures that any illegal hashes are recomputed.
      * After this routine is run, the chain will be valid. The routine does not modify any difficulty values
-     * It computes new proof of work based on the difficulty specified in the Block.
+     * A block whose transactions no longer match its Merkle root gets its root recomputed first.
+     * It computes new proof of work based on the difficulty specified in the Block, using the {@link Miner}
+     * in whichever mode it is configured. The work is done by a {@link ChainRepairer}, which only re-mines the
+     * blocks that need it; use one directly to follow or cancel a long repair.
      */
     public void repairChain() {
-        // don't check previous hash for genesis block
-        Block previousBlock = getBlock(0);
-        String previousHash = getComputedHashForBlock(previousBlock);
-        if (!Utils.hasLeadingZeroes(previousHash, previousBlock.getDifficulty()))
-            previousBlock.proofOfWork();
-
-        for (int i = 1; i < getChainSize(); i++) {
-            Block currentBlock = getBlock(i);
-            currentBlock.setPreviousHash(previousHash);
-            String currentHash = getComputedHashForBlock(currentBlock);
-            if (!Utils.hasLeadingZeroes(currentHash, currentBlock.getDifficulty())) {
-                computeValidProofOfWork(currentBlock);
-            }
-            // Keep track of the valid previous hash
-            previousHash = getComputedHashForBlock(currentBlock);
-        }
+        new ChainRepairer(this).repair();
     }
 
     /**
-     * Recomputes the nonce for which the object transaction data was modified.
-     * Called by repairChain
+     * @return number of blocks from the genesis block on known to be valid
      */
-    private void computeValidProofOfWork(Block b) {
-        b.proofOfWork();
+    int getVerifiedCount() {
+        return verifiedCount;
     }
 
     /**
-     * Computes proof of work the same way a block would - using the nonce
-     * @param b Block whose proof of work needs to be computed
-     * @return Hex string of the block's hash for its given nonce
+     * Called by a {@link ChainRepairer} once every block is valid
+     * @param tipHash hash of the last block, which becomes the chain hash
      */
-    private String getComputedHashForBlock(Block b) {
-        String concatenatedString;
-        concatenatedString = b.getIndex() + b.getTimestamp().toString()
-                + b.getData() + b.getPreviousHash()
-                + b.getNonce() + b.getDifficulty();
-        return Utils.getSHA256Hash(concatenatedString);
+    void repaired(String tipHash) {
+        if (store != null && !tipHash.equals(chainHash))
+            store.setChainHash(tipHash);
+        chainHash = tipHash;
+        verifiedCount = getChainSize();
     }
 }
@@ -0,0 +1,207 @@
+package blockchaintask1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * BlockChainClient is the programmatic counterpart of the interactive {@link BlockChainClientTCP}.
+ * It holds one connection to a {@link BlockChainServerTCP} and can either make one call at a time,
+ * or pipeline many requests: all of them are written without waiting for any response, and the responses are
+ * matched back to their requests with correlation ids. The server answers the requests of a connection in order,
+ * so a bulk load only pays one round trip instead of one per request.
+ * A batch of transactions can also be sent in a single ADD_BATCH request, which adds them as one block.
+ * A transaction submitted to the server's mempool returns at once with an id, which can be polled, or waited on,
+ * until the transaction is mined.
+ * A range of blocks can be streamed with {@link #viewRange}, which hands each page to the caller as it arrives.
+ * A BlockChainClient is not thread safe.
+ */
+public class BlockChainClient implements Closeable {
+    private final FrameConnection connection;
+    private int nextCorrelationId = 1;
+    private ExecutorService writer;     // Writes pipelined requests while the calling thread reads responses
+
+    /**
+     * Connects to a server using the binary format
+     * @param hostName Host of the server
+     * @param port Port of the server
+     */
+    public BlockChainClient(String hostName, int port) throws IOException {
+        this(hostName, port, WireProtocol.FORMAT_BINARY);
+    }
+
+    /**
+     * Connects to a server
+     * @param hostName Host of the server
+     * @param port Port of the server
+     * @param format WireProtocol.FORMAT_BINARY or WireProtocol.FORMAT_JSON
+     */
+    public BlockChainClient(String hostName, int port, byte format) throws IOException {
+        connection = new FrameConnection(new Socket(hostName, port), format);
+    }
+
+    /**
+     * Sends one request and waits for its response. VIEW_RANGE is answered in several frames, use
+     * {@link #viewRange} for it
+     * @param request Request to send
+     * @return the server's response
+     */
+    public Response call(Request request) throws IOException {
+        request.setCorrelationId(nextCorrelationId++);
+        connection.writeRequest(request);
+        Response response = connection.readResponse();
+        if (response.getCorrelationId() != request.getCorrelationId())
+            throw new ProtocolException("Response " + response.getCorrelationId() + " does not answer request "
+                    + request.getCorrelationId());
+        return response;
+    }
+
+    /**
+     * Streams a range of blocks, handing each page to the caller as soon as it arrives, so that neither end holds
+     * the whole range at once
+     * @param from Index of the first block
+     * @param count Number of blocks, the range stops early at the end of the chain
+     * @param pages Receives each page, a JSON array of blocks
+     * @return the last response, which says which blocks were sent
+     */
+    public Response viewRange(int from, int count, Consumer<String> pages) throws IOException {
+        Request request = Request.viewRange(from, count);
+        request.setCorrelationId(nextCorrelationId++);
+        connection.writeRequest(request);
+        while (true) {
+            Response response = connection.readResponse();
+            if (response.getCorrelationId() != request.getCorrelationId())
+                throw new ProtocolException("Response " + response.getCorrelationId() + " does not answer request "
+                        + request.getCorrelationId());
+            if (!response.isPartial())
+                return response;
+            pages.accept(response.getText());
+        }
+    }
+
+    /**
+     * Sends every request without waiting, then collects the responses.
+     * The requests are written by a background thread while this thread reads the responses, so neither side
+     * stalls when the socket buffers fill up. VIEW_RANGE requests cannot be pipelined.
+     * @param requests Requests to send, in order
+     * @return the responses, in the order of the requests
+     */
+    public List<Response> pipeline(List<Request> requests) throws IOException {
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            request.setCorrelationId(nextCorrelationId++);
+            positions.put(request.getCorrelationId(), i);
+        }
+
+        Future<?> writes = getWriter().submit(() -> {
+            for (int i = 0; i < requests.size(); i++) {
+                // Only the last frame is flushed, the rest leave in full buffers
+                connection.writeRequest(requests.get(i), i == requests.size() - 1);
+            }
+            return null;
+        });
+
+        List<Response> responses = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+            responses.add(null);
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                Response response = connection.readResponse();
+                Integer position = positions.get(response.getCorrelationId());
+                if (position == null)
+                    throw new ProtocolException("Unexpected correlation id " + response.getCorrelationId());
+                responses.set(position, response);
+            }
+            writes.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while pipelining requests", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write pipelined requests", e.getCause());
+        } finally {
+            writes.cancel(true);
+        }
+        return responses;
+    }
+
+    /**
+     * Adds one block holding all the transactions, committed through their Merkle root
+     * @param difficulty Difficulty of the block
+     * @param transactions Transactions to add, in order
+     * @return the server's response
+     */
+    public Response addBatch(int difficulty, List<String> transactions) throws IOException {
+        return call(Request.addBatch(difficulty, transactions));
+    }
+
+    /**
+     * Queues a transaction in the server's mempool without waiting for it to be mined
+     * @param data Transaction details
+     * @return the transaction id
+     * @throws IOException if the server rejected the transaction, for example because its mempool is full
+     */
+    public long submit(String data) throws IOException {
+        Response response = call(Request.submit(data));
+        if (!response.isOk())
+            throw new IOException(response.getText());
+        String text = response.getText().trim();
+        return Long.parseLong(text.substring(text.lastIndexOf(' ') + 1));
+    }
+
+    /**
+     * Asks where a submitted transaction is
+     * @param transactionId Id returned by {@link #submit(String)}
+     * @param waitMillis How long the server may wait for the transaction to be mined, 0 to answer right away
+     * @return the server's response
+     */
+    public Response transactionStatus(long transactionId, long waitMillis) throws IOException {
+        return call(Request.transactionStatus(transactionId, waitMillis));
+    }
+
+    /**
+     * Gets a block by its hash
+     * @param hash Hex hash of the block
+     * @return the server's response, holding the JSON of the block if the chain has it
+     */
+    public Response getBlock(String hash) throws IOException {
+        return call(Request.getBlock(hash));
+    }
+
+    /**
+     * Gets a transaction by its SHA-256 hash
+     * @param hash Hex hash of the transaction
+     * @return the server's response, saying which block holds the transaction
+     */
+    public Response getTransaction(String hash) throws IOException {
+        return call(Request.getTransaction(hash));
+    }
+
+    private ExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "pipeline-writer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return writer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null)
+            writer.shutdownNow();
+        connection.close();
+    }
+}
@@ -1,8 +1,6 @@
 package blockchaintask1;
 
-import com.google.gson.JsonObject;
-
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.Scanner;
@@ -11,7 +9,10 @@ import java.util.Scanner;
  * BlockChainClientTCP uses TCP to establish connections with a {@link BlockChainServerTCP}
  * It makes calls to the server in order to perform blockchain operations
  * The underlying procedure concerns is seperated from the client
- * It passes the message to the server in a JSON String, which is deserialized to a {@link JsonObject}
+ * It passes each {@link Request} to the server in a length prefixed {@link WireProtocol} frame.
+ * Requests are binary encoded, unless the client is started with "--json", which sends them as JSON text
+ * so that the traffic is easy to read while debugging.
+ * Viewing the chain streams its blocks, which are printed a page at a time as they arrive.
  *
  * References:
  * 1. https://stackoverflow.com/questions/15687146/objectinputstream
@@ -22,9 +23,8 @@ import java.util.Scanner;
 public class BlockChainClientTCP {
     private static final int SERVER_PORT = 7777;
     private static String hostName;
-    private static Socket clientSocket;
-    private static ObjectOutputStream oos;  // Stream for sending objects
-    private static ObjectInputStream ois;   // Stream for receiving objects
+    private static byte format = WireProtocol.FORMAT_BINARY;
+    private static FrameConnection connection;  // Sends requests and receives responses
     private static Scanner input;
     /**
      * This method initiates the menu for the user to interact with
@@ -47,26 +47,31 @@ public class BlockChainClientTCP {
                 break;
             }
             else {
-                String requestMessage = constructRequestMessage(choice);
-                System.out.println(getResponseFromServer(requestMessage));
+                Request requestMessage = constructRequestMessage(choice);
+                if (requestMessage != null)
+                    System.out.println(getResponseFromServer(requestMessage));
             }
         }
     }
 
     /**
-     * This method sends the JSON string to the server.
+     * This method sends the request to the server.
      * It also returns the server's response to the client request
      * @param requestMessage Message to be sent to the client
      * @return String returned by the server
      */
-    private static String getResponseFromServer(String requestMessage) {
+    private static String getResponseFromServer(Request requestMessage) {
         try {
-            // Write the Message object to the stream
-            oos.writeObject(requestMessage);
-            oos.flush();
+            // Write the request frame to the socket
+            connection.writeRequest(requestMessage);
 
-            // Wait for server's response and return once it is received.
-            return (String) ois.readObject();
+            // Print the pages of a streamed response as they arrive, and return the last frame once it is received.
+            Response response = connection.readResponse();
+            while (response.isPartial()) {
+                System.out.println(response.getText());
+                response = connection.readResponse();
+            }
+            return response.getText();
 
         } catch (SocketException e) {
             System.out.println("Socket: " + e.getMessage());
@@ -74,34 +79,34 @@ public class BlockChainClientTCP {
             System.out.println("IO: " + e.getMessage());
         } catch (NumberFormatException e) {
             System.out.println("Failed to get a valid response from server: " + e.getMessage());
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
         }
         return null;
     }
 
     /**
-     * This method creates a JSONObject and populates it with the relevant data.
+     * This method creates a Request and populates it with the relevant data.
      * This may include transaction value, difficulty, or new data to be replaced.
      * @param choice The choice entered by the user
-     * @return JSON String of the request message to be sent to the server
+     * @return the request message to be sent to the server
      */
-    private static String constructRequestMessage(int choice) {
+    private static Request constructRequestMessage(int choice) {
 
         // Handling invalid choices
         if (choice < 0 || choice > 5) {
             System.out.println("Invalid command");
             return null;
         }
-        JsonObject message = new JsonObject();
-        message.addProperty("choice", choice);
+        // Viewing the chain streams every block instead of sending the whole chain as one String
+        if (choice == 3)
+            return Request.viewRange(0, Integer.MAX_VALUE);
+        Request message = new Request(choice);
         // Adding a transaction
         if (choice == 1) {
             System.out.println("Enter difficulty > 0");
-            message.addProperty("difficulty", input.nextInt());
+            message.setDifficulty(input.nextInt());
             input.nextLine();
             System.out.println("Enter transaction");
-            message.addProperty("data", input.nextLine());
+            message.setData(input.nextLine());
         }
         else if (choice == 2) {
             System.out.println("Server verifying the chain");
@@ -111,22 +116,20 @@ public class BlockChainClientTCP {
             System.out.println("corrupt the Blockchain");
             System.out.println("Enter block ID of block to corrupt");
             int id = input.nextInt();
-            message.addProperty("id", id);
+            message.setId(id);
             input.nextLine();
             System.out.println("Enter new data for block " + id);
-            message.addProperty("newData", input.nextLine());
+            message.setNewData(input.nextLine());
         }
-        return message.toString();
+        return message;
     }
 
     /**
-     * This method instantiates the client socket and retrieves its input and output object streams.
+     * This method instantiates the client socket and wraps it in a frame connection.
      */
     private static void setupConnections() {
         try {
-            clientSocket = new Socket(hostName, SERVER_PORT);
-            oos = new ObjectOutputStream(clientSocket.getOutputStream());
-            ois = new ObjectInputStream(clientSocket.getInputStream());
+            connection = new FrameConnection(new Socket(hostName, SERVER_PORT), format);
         } catch (IOException e) {
             System.out.println("Unable to establish connection with the server");
             e.printStackTrace();
@@ -135,11 +138,15 @@ public class BlockChainClientTCP {
 
     /**
      * Driver program for running the client
-     * @param args hardcoded as "localhost"
+     * @param args "--json" to send requests as JSON text. The host is hardcoded as "localhost"
      */
     public static void main(String[] args) {
         System.out.println("The client is running.");
         hostName = "localhost";
+        for (String arg : args) {
+            if (arg.equals("--json"))
+                format = WireProtocol.FORMAT_JSON;
+        }
         setupConnections();
         startClient();
     }
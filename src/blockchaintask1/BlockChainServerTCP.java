@@ -1,74 +1,233 @@
 package blockchaintask1;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * BlockChainServerTCP uses TCP to listen to a {@link BlockChainClientTCP} and serve its requests
+ * BlockChainServerTCP uses TCP to listen to {@link BlockChainClientTCP}s and serve their requests
  * It abstracts the blockchain functionality from the client side
- * It receives a JSON String message, deserializes it to a {@link JsonObject} and extracts the relevant values from it
+ * It receives length prefixed {@link WireProtocol} frames, decodes each one into a {@link Request} and answers it
+ * in the format it came in, binary or JSON
+ * The requests of one connection are processed and answered in the order they arrive, so a client can pipeline
+ * many requests without waiting for each response
+ * Every accepted connection is served by its own task, so any number of clients can be connected at the same time.
+ * On a JVM that has virtual threads each connection gets a virtual thread, otherwise a pooled platform thread.
+ * The {@link ServerModel} coordinates the requests of the connected clients on the shared blockchain.
+ * A VIEW_RANGE request is answered with one STATUS_PARTIAL frame per page of blocks, flushed as soon as it is
+ * built, followed by a last frame saying which blocks were sent.
+ * The latency of every request, by command, and the number of active connections go to {@link Metrics}, which
+ * are also served in the Prometheus format on a local port when -Dmetrics.port is set.
+ * Several servers, on the ports given by -Dserver.port, can replicate one chain as the nodes of a
+ * {@link PeerNetwork} given by -Dpeers.
+ * Every request and its result are printed unless -Dserver.logRequests=false. The blocks sent to a peer that is
+ * syncing are only printed as their length, since building their text would cost more than sending them.
  *
  * References
  *  1. https://stackoverflow.com/questions/4252294/sending-objects-across-network-using-udp-in-java
  *  2. https://stackoverflow.com/questions/21073024/receive-an-object-over-tcp-ip
  *  3. https://github.com/CMU-Heinz-95702/Project-2-Client-Server#task-4-use-the-intellij-project-name-project2task4
  *  https://www.baeldung.com/gson-string-to-jsonobject
+ *  4. https://openjdk.org/jeps/444
 */
 public class BlockChainServerTCP {
-    private static ServerModel sm;  // Server's model class that holds the blockchain data
+    private static final int DEFAULT_PORT = 7777;
+
+    private final ServerModel sm;  // Server's model class that holds the blockchain data
+    private final int serverPort;
+    private final ExecutorService connectionExecutor;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private volatile boolean logRequests = Boolean.parseBoolean(System.getProperty("server.logRequests", "true"));
+    private volatile ServerSocket listenSocket;
+    private volatile boolean running;
 
     /**
-     * This method reads incoming streams from the client and serves requests
+     * @param sm Model holding the blockchain shared by every connection
+     * @param serverPort Port to listen on
      */
-    private static void processNewClientRequest() {
-        int serverPort = 7777;
-        Socket clientSocket;
-        try (ServerSocket listenSocket = new ServerSocket(serverPort)) {
-            /*
-             * Block waiting for a new connection request from a client.
-             * When the request is received, "accept" it, and the rest
-             * the tcp protocol handshake will then take place, making
-             * the socket ready for reading and writing.
-             */
-            clientSocket = listenSocket.accept();
-            // Set up "in" to read from the client socket
-            ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream());
-            // Set up "out" to read from the client socket
-            ObjectOutputStream oos = new ObjectOutputStream(clientSocket.getOutputStream());
-            String messageFromClientJSON;
+    public BlockChainServerTCP(ServerModel sm, int serverPort) {
+        this.sm = sm;
+        this.serverPort = serverPort;
+        this.connectionExecutor = newConnectionExecutor();
+        Metrics.registerGauge("blockchain_active_connections", "Connected clients", activeConnections::get);
+    }
 
-            while ((messageFromClientJSON = (String) ois.readObject()) != null) {
-                System.out.println("JSON Message from the client:\n" + messageFromClientJSON);
-                JsonParser parser = new JsonParser();
-                JsonObject messageObject = (JsonObject) parser.parse(messageFromClientJSON);
-                // Delegate message processing concern to the model
-                String result = sm.processClientMessage(messageObject);
-                // Return result back to client
-                System.out.println("Returning result:\n" + result);
-                oos.writeObject(result);
-                oos.flush();
+    /**
+     * @param logRequests true to print every request and its result, false for load runs, where building and
+     *                    printing them would be measured instead of the server
+     */
+    public void setLogRequests(boolean logRequests) {
+        this.logRequests = logRequests;
+    }
+
+    /**
+     * Creates the executor running one task per connection.
+     * Virtual threads are used when the JVM has them (Java 21+). They are looked up reflectively so that
+     * the server still runs on older JVMs, where a cached pool of daemon platform threads is used instead.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadId = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "client-" + threadId.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * This method accepts new connections until the server is closed and hands each one to its own task
+     */
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
+            listenSocket = serverSocket;
+            running = true;
+            while (running) {
+                /*
+                 * Block waiting for a new connection request from a client.
+                 * When the request is received, "accept" it, and the rest
+                 * the tcp protocol handshake will then take place, making
+                 * the socket ready for reading and writing.
+                 */
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // The listen socket was closed by close()
+                    if (!running)
+                        break;
+                    throw e;
+                }
+                connectionExecutor.execute(() -> processClientRequests(clientSocket));
             }
+        } finally {
+            running = false;
+        }
+    }
 
-        } catch (SocketException e) {
+    /**
+     * This method reads incoming streams from one client and serves its requests until it disconnects
+     * @param clientSocket Socket of the accepted connection
+     */
+    private void processClientRequests(Socket clientSocket) {
+        activeConnections.incrementAndGet();
+        try (Socket socket = clientSocket) {
+            FrameConnection connection = new FrameConnection(socket, WireProtocol.FORMAT_BINARY);
+            while (true) {
+                Request request;
+                try {
+                    request = connection.readRequest();
+                } catch (ProtocolException e) {
+                    // The rest of the stream cannot be trusted after a malformed frame: the client is told, with
+                    // the correlation id 0 since the frame's own cannot be relied on, and disconnected
+                    System.out.println("Malformed request: " + e.getMessage());
+                    connection.writeResponse("Request failed: " + e.getMessage(), WireProtocol.STATUS_ERROR, 0,
+                            true);
+                    break;
+                }
+                if (request == null) {
+                    System.out.println("Client disconnected");
+                    break;
+                }
+                long startTime = System.nanoTime();
+                if (logRequests)
+                    System.out.println("Message from the client:\n" + request.toJson());
+                String result;
+                byte status = WireProtocol.STATUS_OK;
+                try {
+                    // Delegate message processing concern to the model
+                    if (request.getCommand() == Command.VIEW_RANGE) {
+                        int correlationId = request.getCorrelationId();
+                        result = sm.streamBlocks(request, page ->
+                                connection.writeResponse(page, WireProtocol.STATUS_PARTIAL, correlationId, true));
+                    } else {
+                        result = sm.processRequest(request);
+                    }
+                } catch (RuntimeException e) {
+                    // For example a block id that is not on the chain
+                    result = "Request failed: " + e;
+                    status = WireProtocol.STATUS_ERROR;
+                }
+                // Return result back to client
+                if (logRequests)
+                    System.out.println("Returning result:\n" + describe(request.getCommand(), result));
+                // Pipelined requests that have already arrived are answered before flushing
+                boolean flush = !connection.hasBufferedInput();
+                try {
+                    connection.writeResponse(result, status, request.getCorrelationId(), flush);
+                } catch (ProtocolException e) {
+                    // Nothing was sent, the result is larger than a frame
+                    status = WireProtocol.STATUS_ERROR;
+                    connection.writeResponse("Request failed: " + e.getMessage(), status,
+                            request.getCorrelationId(), flush);
+                }
+                if (request.getCommand() != null) {
+                    Metrics.recordRequest(request.getCommand(), System.nanoTime() - startTime,
+                            status != WireProtocol.STATUS_OK);
+                }
+            }
+        } catch (EOFException | SocketException e) {
             System.out.println("Client disconnected: " + e.getMessage());
-            processNewClientRequest();
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            System.out.println("Deserialization: " + e.getMessage());
+        } finally {
+            activeConnections.decrementAndGet();
         }
     }
+
+    /**
+     * @return the result to print, or only its length for the blocks and headers sent to a syncing peer
+     */
+    private static String describe(Command command, String result) {
+        if (command == Command.GET_BLOCKS || command == Command.GET_HEADERS || command == Command.GET_BODIES)
+            return result.length() + " characters for " + command;
+        return result;
+    }
+
+    /**
+     * @return number of clients connected right now
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Stops accepting connections. Connections that are already open are served until their clients disconnect.
+     */
+    public void close() throws IOException {
+        running = false;
+        if (listenSocket != null)
+            listenSocket.close();
+        connectionExecutor.shutdown();
+    }
+
     // Initialize model and listen for requests upon startup
-    public static void main(String[] args) {
-        sm = new ServerModel();
+    public static void main(String[] args) throws IOException {
+        int port = Integer.getInteger("server.port", DEFAULT_PORT);
+        ServerModel sm = ServerModel.start();
+        // Checkpoint the block store when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(sm::shutdown));
+        Integer metricsPort = Integer.getInteger("metrics.port");
+        if (metricsPort != null) {
+            MetricsHttpServer metrics = new MetricsHttpServer(metricsPort);
+            System.out.println("Serving metrics on http://localhost:" + metrics.getPort() + "/metrics");
+        }
+        BlockChainServerTCP server = new BlockChainServerTCP(sm, port);
+        PeerNetwork peers = PeerNetwork.fromSystemProperties(sm, System.getProperty("peer.address", "localhost:" + port));
+        if (peers != null)
+            System.out.println("Replicating with peers " + System.getProperty("peers"));
         System.out.println("Server started.");
-        processNewClientRequest();
+        server.serve();
     }
 }
@@ -0,0 +1,110 @@
+package blockchaintask1;
+
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class converts a {@link Block} to and from the compact binary form used by {@link BlockStore}.
+ * The fields are written in this order:
+ * 1. int - index
+ * 2. long, int - timestamp milliseconds and nanoseconds, so that Timestamp.toString() and therefore the hash
+ *    come back exactly
+ * 3. int - difficulty
+ * 4. strings - nonce in decimal, previous hash, Merkle root, data
+ * 5. int - number of transactions (-1 for a single transaction block), followed by the transactions
+ * 6. int - compact target, only for blocks that have one. Blocks encoded before targets existed end at 5
+ * Strings are an int byte count (-1 for null) followed by their UTF-8 bytes, as in {@link WireProtocol}.
+ */
+public final class BlockCodec {
+
+    private BlockCodec() {
+    }
+
+    /**
+     * Writes a block at the buffer's position
+     * @throws BufferOverflowException if the block does not fit
+     */
+    public static void encode(Block block, ByteBuffer buffer) {
+        buffer.putInt(block.getIndex());
+        buffer.putLong(block.getTimestamp().getTime());
+        buffer.putInt(block.getTimestamp().getNanos());
+        buffer.putInt(block.getDifficulty());
+        putString(buffer, block.getNonce() == null ? null : block.getNonce().toString());
+        putString(buffer, block.getPreviousHash());
+        putString(buffer, block.getMerkleRoot());
+        putString(buffer, block.getData());
+        List<String> transactions = block.getTransactions();
+        if (transactions == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(transactions.size());
+            for (String transaction : transactions)
+                putString(buffer, transaction);
+        }
+        if (block.getBits() != 0)
+            buffer.putInt(block.getBits());
+    }
+
+    /**
+     * Reads a block written by {@link #encode}, starting at the buffer's position
+     * @param buffer Buffer whose limit is the end of the block, which tells whether the block has a target
+     */
+    public static Block decode(ByteBuffer buffer) {
+        int index = buffer.getInt();
+        Timestamp timestamp = new Timestamp(buffer.getLong());
+        timestamp.setNanos(buffer.getInt());
+        int difficulty = buffer.getInt();
+        String nonce = getString(buffer);
+        String previousHash = getString(buffer);
+        String merkleRoot = getString(buffer);
+        String data = getString(buffer);
+
+        Block block = new Block(index, timestamp, data, difficulty);
+        block.setNonce(nonce == null ? null : new BigInteger(nonce));
+        block.setPreviousHash(previousHash);
+        block.setMerkleRoot(merkleRoot);
+        int count = buffer.getInt();
+        if (count >= 0) {
+            List<String> transactions = new ArrayList<>(Math.min(count, buffer.remaining() / 4));
+            for (int i = 0; i < count; i++)
+                transactions.add(getString(buffer));
+            // The stored root is kept as is, even if the transactions were corrupted
+            block.setTransactions(transactions);
+        }
+        if (buffer.remaining() >= 4)
+            block.setBits(buffer.getInt());
+        return block;
+    }
+
+    /**
+     * Reads only the index of an encoded block, without decoding the rest
+     */
+    public static int peekIndex(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position());
+    }
+
+    static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        // Copied out so that direct and mapped buffers work too
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
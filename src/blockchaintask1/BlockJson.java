@@ -0,0 +1,331 @@
+package blockchaintask1;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class holds the JSON serialization of blocks and chains.
+ * There is one shared {@link Gson}, which is thread safe, instead of a new one for every toString() call.
+ * Blocks are written by a hand-written {@link TypeAdapter} rather than by reflection. It keeps the keys of the
+ * {@link com.google.gson.annotations.SerializedName} annotations on {@link Block} ("time stamp ", "Tx ", "PrevHash"),
+ * the order of the fields, and leaves out the fields that are null, so the JSON is the same as before.
+ * The "Bits" of a fractional difficulty are only written for blocks that have them.
+ * The timestamp is written by Gson's own Timestamp adapter, so its format does not change either.
+ * That format drops the milliseconds, which are part of the hash of a block, so blocks sent to other nodes are
+ * written by {@link #PEER_GSON} instead, with the exact timestamp of {@link Timestamp#toString()}. Both formats
+ * are read by either Gson.
+ * {@link BlockChain} keeps the JSON of its verified blocks in a {@link Cache}, so viewing the chain again does not
+ * serialize the unchanged history again.
+ *
+ * References:
+ * 1. https://www.javadoc.io/doc/com.google.code.gson/gson/2.2.2/com/google/gson/TypeAdapter.html
+ * 2. https://www.javadoc.io/doc/com.google.code.gson/gson/2.2.2/com/google/gson/TypeAdapterFactory.html
+ */
+public final class BlockJson {
+    public static final Gson GSON = new GsonBuilder().registerTypeAdapterFactory(new BlockAdapterFactory(false))
+            .create();
+    // Keeps the exact timestamp, so that a block read back has the same hash
+    public static final Gson PEER_GSON = new GsonBuilder().registerTypeAdapterFactory(new BlockAdapterFactory(true))
+            .create();
+
+    private BlockJson() {
+    }
+
+    /**
+     * @return the JSON of one block
+     */
+    public static String toJson(Block block) {
+        return GSON.toJson(block, Block.class);
+    }
+
+    /**
+     * Writes a chain the way Gson wrote its fields: the blocks under "ds_chain", then the chain hash and the
+     * hashes per second. The blocks come from {@link BlockChain#getBlockJson(int)}, cached when they can be
+     */
+    public static String toJson(BlockChain chain) {
+        StringBuilder sb = new StringBuilder("{\"ds_chain\":[");
+        int size = chain.getChainSize();
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(chain.getBlockJson(i));
+        }
+        sb.append("],\"chainHash\":").append(GSON.toJson(chain.getChainHash()));
+        sb.append(",\"hashesPerSecond\":").append(chain.getHashesPerSecond()).append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Writes a range of blocks for another node: the size, chain hash and total work of the chain, then the blocks
+     * written by {@link #PEER_GSON}
+     * @param chain Chain to read
+     * @param from Index of the first block
+     * @param count Most blocks to write, fewer at the end of the chain
+     */
+    public static String toPeerJson(BlockChain chain, int from, int count) {
+        int size = chain.getChainSize();
+        StringBuilder sb = new StringBuilder("{\"size\":").append(size);
+        sb.append(",\"chainHash\":").append(GSON.toJson(chain.getChainHash()));
+        sb.append(",\"totalWork\":\"").append(chain.getTotalWork()).append("\",\"blocks\":[");
+        int end = (int) Math.min((long) from + count, size);
+        for (int i = from; i < end; i++) {
+            if (i > from)
+                sb.append(',');
+            sb.append(PEER_GSON.toJson(chain.getBlock(i), Block.class));
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Writes the compact headers of a range of blocks for another node, see {@link HeaderSync}: the size, chain hash
+     * and total work of the chain, the previous hash of the first block, then one array per block holding its exact
+     * timestamp, difficulty, bits, nonce, Merkle root and data. The index and previous hash of the other blocks are
+     * left out, the receiver knows them from the blocks before. A block holding several transactions has a null
+     * data and its transactions are sent by {@link #toBodyJson}, a single transaction block has a null Merkle root
+     * and its data, which its hash covers, stays in its header.
+     * @param chain Chain to read
+     * @param from Index of the first block
+     * @param count Most headers to write, fewer at the end of the chain
+     */
+    public static String toHeaderJson(BlockChain chain, int from, int count) {
+        int size = chain.getChainSize();
+        StringBuilder sb = new StringBuilder("{\"size\":").append(size);
+        sb.append(",\"chainHash\":").append(GSON.toJson(chain.getChainHash()));
+        sb.append(",\"totalWork\":\"").append(chain.getTotalWork()).append('"');
+        int end = (int) Math.min((long) from + count, size);
+        if (from < end)
+            sb.append(",\"previousHash\":").append(GSON.toJson(chain.getBlock(from).getPreviousHash()));
+        sb.append(",\"headers\":[");
+        for (int i = from; i < end; i++) {
+            Block block = chain.getBlock(i);
+            if (i > from)
+                sb.append(',');
+            sb.append('[').append(GSON.toJson(block.getTimestamp().toString()));
+            sb.append(',').append(block.getDifficulty()).append(',').append(block.getBits());
+            sb.append(',').append(GSON.toJson(String.valueOf(block.getNonce())));
+            boolean merkle = block.getTransactions() != null;
+            sb.append(',').append(GSON.toJson(merkle ? block.getMerkleRoot() : null));
+            sb.append(',').append(GSON.toJson(merkle ? null : block.getData())).append(']');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Writes the transactions of a range of blocks for another node: one array of transactions per block, or null
+     * for a single transaction block, whose data came with its header
+     * @param chain Chain to read
+     * @param from Index of the first block
+     * @param count Most blocks to write, fewer at the end of the chain
+     */
+    public static String toBodyJson(BlockChain chain, int from, int count) {
+        StringBuilder sb = new StringBuilder("{\"bodies\":[");
+        int end = (int) Math.min((long) from + count, chain.getChainSize());
+        for (int i = from; i < end; i++) {
+            if (i > from)
+                sb.append(',');
+            sb.append(GSON.toJson(chain.getBlock(i).getTransactions()));
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Hands out the block adapter, with Gson's adapter for the timestamp
+     */
+    private static class BlockAdapterFactory implements TypeAdapterFactory {
+        private final boolean exactTimestamps;
+
+        BlockAdapterFactory(boolean exactTimestamps) {
+            this.exactTimestamps = exactTimestamps;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Block.class)
+                return null;
+            return (TypeAdapter<T>) new BlockAdapter(gson.getAdapter(Timestamp.class), exactTimestamps);
+        }
+    }
+
+    /**
+     * Reads and writes the fields of a block by name, in the order they are declared
+     */
+    private static class BlockAdapter extends TypeAdapter<Block> {
+        private final TypeAdapter<Timestamp> timestampAdapter;
+        private final boolean exactTimestamps;
+
+        BlockAdapter(TypeAdapter<Timestamp> timestampAdapter, boolean exactTimestamps) {
+            this.timestampAdapter = timestampAdapter;
+            this.exactTimestamps = exactTimestamps;
+        }
+
+        @Override
+        public void write(JsonWriter out, Block block) throws IOException {
+            if (block == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("index").value(block.getIndex());
+            if (block.getTimestamp() != null) {
+                out.name("time stamp ");
+                if (exactTimestamps)
+                    out.value(block.getTimestamp().toString());
+                else
+                    timestampAdapter.write(out, block.getTimestamp());
+            }
+            if (block.getData() != null)
+                out.name("Tx ").value(block.getData());
+            if (block.getTransactions() != null) {
+                out.name("Txs").beginArray();
+                for (String transaction : block.getTransactions())
+                    out.value(transaction);
+                out.endArray();
+            }
+            if (block.getMerkleRoot() != null)
+                out.name("MerkleRoot").value(block.getMerkleRoot());
+            out.name("difficulty").value(block.getDifficulty());
+            // Blocks without a target keep the JSON they always had
+            if (block.getBits() != 0)
+                out.name("Bits").value(block.getBits());
+            if (block.getPreviousHash() != null)
+                out.name("PrevHash").value(block.getPreviousHash());
+            if (block.getNonce() != null)
+                out.name("nonce").value(block.getNonce());
+            out.endObject();
+        }
+
+        @Override
+        public Block read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            int index = 0;
+            int difficulty = 0;
+            int bits = 0;
+            Timestamp timestamp = null;
+            String data = null;
+            List<String> transactions = null;
+            String merkleRoot = null;
+            String previousHash = null;
+            BigInteger nonce = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                if (name.equals("index")) {
+                    index = in.nextInt();
+                } else if (name.equals("time stamp ")) {
+                    timestamp = readTimestamp(in.nextString());
+                } else if (name.equals("Tx ")) {
+                    data = in.nextString();
+                } else if (name.equals("Txs")) {
+                    transactions = new ArrayList<>();
+                    in.beginArray();
+                    while (in.hasNext())
+                        transactions.add(in.nextString());
+                    in.endArray();
+                } else if (name.equals("MerkleRoot")) {
+                    merkleRoot = in.nextString();
+                } else if (name.equals("difficulty")) {
+                    difficulty = in.nextInt();
+                } else if (name.equals("Bits")) {
+                    bits = in.nextInt();
+                } else if (name.equals("PrevHash")) {
+                    previousHash = in.nextString();
+                } else if (name.equals("nonce")) {
+                    nonce = new BigInteger(in.nextString());
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            Block block = new Block(index, timestamp, data, difficulty);
+            block.setTransactions(transactions);
+            block.setBits(bits);
+            block.setMerkleRoot(merkleRoot);
+            block.setPreviousHash(previousHash);
+            block.setNonce(nonce);
+            return block;
+        }
+
+        /**
+         * Reads an exact timestamp, or one in the format of Gson's Timestamp adapter
+         */
+        private Timestamp readTimestamp(String text) {
+            try {
+                return Timestamp.valueOf(text);
+            } catch (IllegalArgumentException e) {
+                return timestampAdapter.fromJsonTree(new JsonPrimitive(text));
+            }
+        }
+    }
+
+    /**
+     * Keeps the JSON of the most recently used blocks, by index.
+     * Only blocks that have been verified and have not changed since are put in the cache, and a change of a
+     * block drops it and every block after it, so the cache never hands out the JSON of an older version.
+     * Readers of the chain use it concurrently, so every method is synchronized.
+     */
+    static class Cache {
+        private final int capacity;
+        private final Map<Integer, String> blocks;
+        private int end;    // Every cached index is below this
+
+        /**
+         * @param capacity Maximum number of blocks kept, 0 to keep none
+         */
+        Cache(int capacity) {
+            this.capacity = capacity;
+            blocks = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                    return size() > Cache.this.capacity;
+                }
+            };
+        }
+
+        synchronized String get(int index) {
+            return blocks.get(index);
+        }
+
+        synchronized void put(int index, String json) {
+            if (capacity == 0)
+                return;
+            blocks.put(index, json);
+            end = Math.max(end, index + 1);
+        }
+
+        /**
+         * Drops the given block and every block after it
+         */
+        synchronized void invalidateFrom(int index) {
+            // Cheap for the blocks changed one after another by a repair, only the first one has anything to drop
+            if (index >= end)
+                return;
+            blocks.keySet().removeIf(i -> i >= index);
+            end = index;
+        }
+    }
+}
@@ -0,0 +1,586 @@
+package blockchaintask1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * BlockStore keeps a chain on disk, so that it survives a restart of the server.
+ * Blocks are written to an append-only log split into segment files. Every record is length prefixed and carries a
+ * CRC-32, so a record torn by a crash is detected and cut off when the store is opened again.
+ * A record either appends a block, replaces a block that was changed in place (corrupted or repaired), sets
+ * the chain hash, or drops the last blocks when the chain switches to a fork. An index maps every block index to the position of its latest record, and blocks are only read
+ * and decoded when they are asked for, with the most recent ones kept in a small cache.
+ * From time to time the store writes a checkpoint: the index is saved and a small checkpoint file records how far
+ * the log is covered. Opening a store loads the saved index and only scans the log written after the checkpoint,
+ * so a restart does not read, decode or validate the whole chain.
+ * It is the default kind of {@link ChainStore}.
+ * How often the log is forced to disk is set by the {@link FsyncPolicy}. Only ALWAYS makes a write durable before it
+ * returns. There is no group commit holding writes until a shared fsync: the chain's write lock lets one write in at
+ * a time, so no two writes could share one.
+ * Reads may run concurrently. Writes must not overlap with each other or with reads, which the chain's write lock
+ * in {@link ServerModel} guarantees.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/nio/channels/FileChannel.html
+ * 2. https://en.wikipedia.org/wiki/Write-ahead_logging
+ */
+public class BlockStore implements ChainStore {
+
+    /**
+     * When appended records are forced to disk
+     */
+    public enum FsyncPolicy {
+        ALWAYS,     // After every record, nothing acknowledged is ever lost
+        PERIODIC,   // By a background thread every few milliseconds, so many records share one fsync. Records are
+                    // acknowledged before they are forced, a crash loses those of the last interval
+        NEVER       // Left to the operating system, only checkpoints and segment changes force the log
+    }
+
+    private static final byte RECORD_APPEND = 1;
+    private static final byte RECORD_UPDATE = 2;
+    private static final byte RECORD_CHAIN_HASH = 3;
+    private static final byte RECORD_TRUNCATE = 4;
+
+    // int payload length and int CRC-32 of the payload
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int CHECKPOINT_MAGIC = 0x424b4350;
+    private static final int CACHE_SIZE = 1024;
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long segmentBytes;
+    private final int checkpointInterval;
+    private final List<FileChannel> segments = new ArrayList<>();
+    private volatile FileChannel currentSegment;
+    private final FileChannel indexFile;
+    private final ScheduledExecutorService flusher;
+
+    // Latest record of each block, as (segment << 32) | offset
+    private long[] locations = new long[1024];
+    private int count;
+    private String chainHash = "";
+    private long writeOffset;                       // End of the current segment
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(8 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    // What changed since the last checkpoint: blocks from checkpointedCount on, and the updated ones before it
+    private int checkpointedCount;
+    private final BitSet updatedSinceCheckpoint = new BitSet();
+    private int recordsSinceCheckpoint;
+    // Records written to the log, and how many of them are known to be forced to disk
+    private volatile long recordsWritten;
+    private volatile long recordsSynced;
+    private boolean closed;
+
+    // Recently used blocks, least recently used first
+    private final Map<Integer, Block> cache = new LinkedHashMap<Integer, Block>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Opens the store in the given directory, creating it if needed, and recovers the chain it holds
+     * @param directory Directory of the segment, index and checkpoint files
+     * @param fsyncPolicy When records are forced to disk
+     * @param fsyncIntervalMillis How often the PERIODIC policy forces the log
+     * @param segmentBytes Size after which the log moves on to a new segment file
+     * @param checkpointInterval Number of records after which a checkpoint is written
+     */
+    public BlockStore(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, long segmentBytes,
+                      int checkpointInterval) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentBytes = segmentBytes;
+        this.checkpointInterval = checkpointInterval;
+        Files.createDirectories(directory);
+
+        for (int segment = 0; Files.exists(segmentPath(segment)); segment++)
+            segments.add(FileChannel.open(segmentPath(segment), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        if (segments.isEmpty())
+            segments.add(openNewSegment(0));
+        indexFile = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long start = readCheckpoint();
+        recover((int) (start >>> 32), start & 0xFFFFFFFFL);
+        // Save what the scan found, so that the next start does not scan it again
+        if (recordsSinceCheckpoint > 0)
+            checkpoint();
+
+        if (fsyncPolicy == FsyncPolicy.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "block-store-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Opens a store configured from the store.* system properties: -Dstore.fsync (PERIODIC by default),
+     * -Dstore.fsyncIntervalMillis (10), -Dstore.segmentBytes (64 MB) and -Dstore.checkpointInterval (10000 records)
+     * @param directory Directory of the store
+     */
+    public static BlockStore fromSystemProperties(String directory) throws IOException {
+        return new BlockStore(Paths.get(directory),
+                FsyncPolicy.valueOf(System.getProperty("store.fsync", FsyncPolicy.PERIODIC.name())),
+                Long.getLong("store.fsyncIntervalMillis", 10),
+                Long.getLong("store.segmentBytes", 64L * 1024 * 1024),
+                Integer.getInteger("store.checkpointInterval", 10000));
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String getChainHash() {
+        return chainHash;
+    }
+
+    /**
+     * Appends a newly mined block
+     * @param block Block whose index is the current size of the store
+     * @param chainHash Hash of the block, which becomes the chain hash
+     */
+    @Override
+    public synchronized void append(Block block, String chainHash) {
+        long location = writeRecord(RECORD_APPEND, chainHash, block);
+        setLocation(block.getIndex(), location);
+        this.chainHash = chainHash;
+        cachePut(block);
+        checkpointIfDue();
+    }
+
+    /**
+     * Stores the new state of a block that was changed in place
+     * @param block Block already in the store, identified by its index
+     */
+    @Override
+    public synchronized void update(Block block) {
+        long location = writeRecord(RECORD_UPDATE, null, block);
+        setLocation(block.getIndex(), location);
+        cachePut(block);
+        checkpointIfDue();
+    }
+
+    /**
+     * Stores a new chain hash, after the chain was repaired
+     */
+    @Override
+    public synchronized void setChainHash(String chainHash) {
+        writeRecord(RECORD_CHAIN_HASH, chainHash, null);
+        this.chainHash = chainHash;
+        checkpointIfDue();
+    }
+
+    /**
+     * Drops the last blocks. The log keeps their records, the index forgets them
+     * @param size Number of blocks kept
+     * @param chainHash Hash of the last block kept, which becomes the chain hash
+     */
+    @Override
+    public synchronized void truncate(int size, String chainHash) {
+        writeRecord(RECORD_TRUNCATE, chainHash, null, size);
+        this.chainHash = chainHash;
+        truncated(size);
+        checkpointIfDue();
+    }
+
+    /**
+     * Reads a block, from the cache if it was used recently
+     * @param i index of the block
+     * @return the block. The same instance is returned while it stays in the cache
+     */
+    @Override
+    public Block read(int i) {
+        synchronized (cache) {
+            Block block = cache.get(i);
+            if (block != null)
+                return block;
+        }
+        Block block;
+        try {
+            ByteBuffer payload = readRecord(locations[i]);
+            byte type = payload.get();
+            if (type == RECORD_APPEND)
+                BlockCodec.getString(payload);      // Skip the chain hash
+            block = BlockCodec.decode(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read block " + i, e);
+        }
+        cachePut(block);
+        return block;
+    }
+
+    /**
+     * Saves the index and records how far the log is covered by it, so that the next start only scans what follows
+     */
+    public synchronized void checkpoint() throws IOException {
+        // The records covered by the checkpoint must reach the disk before it does
+        long written = recordsWritten;
+        currentSegment.force(false);
+        recordsSynced = written;
+
+        for (int i = updatedSinceCheckpoint.nextSetBit(0); i >= 0; i = updatedSinceCheckpoint.nextSetBit(i + 1)) {
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            entry.putLong(0, locations[i]);
+            writeFully(indexFile, entry, (long) i * 8);
+        }
+        if (count > checkpointedCount) {
+            ByteBuffer entries = ByteBuffer.allocate((count - checkpointedCount) * 8);
+            entries.asLongBuffer().put(locations, checkpointedCount, count - checkpointedCount);
+            writeFully(indexFile, entries, (long) checkpointedCount * 8);
+        }
+        indexFile.force(false);
+
+        byte[] hash = chainHash.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer checkpoint = ByteBuffer.allocate(28 + hash.length);
+        checkpoint.putInt(CHECKPOINT_MAGIC);
+        checkpoint.putInt(count);
+        checkpoint.putLong(location(segments.size() - 1, writeOffset));
+        BlockCodec.putString(checkpoint, chainHash);
+        crc.reset();
+        crc.update(checkpoint.array(), 0, checkpoint.position());
+        checkpoint.putInt((int) crc.getValue());
+        checkpoint.flip();
+
+        // Written aside and renamed, so that a crash leaves either the old or the new checkpoint
+        Path temporary = directory.resolve("checkpoint.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, checkpoint, 0);
+            channel.force(false);
+        }
+        Files.move(temporary, directory.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        checkpointedCount = count;
+        updatedSinceCheckpoint.clear();
+        recordsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Writes a last checkpoint and closes the files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        if (flusher != null)
+            flusher.shutdownNow();
+        checkpoint();
+        closed = true;
+        for (FileChannel segment : segments)
+            segment.close();
+        indexFile.close();
+    }
+
+    /**
+     * Reads the checkpoint and the index it covers
+     * @return the log position to scan from, the start of the log if there is no usable checkpoint
+     */
+    private long readCheckpoint() throws IOException {
+        Path path = directory.resolve("checkpoint");
+        if (!Files.exists(path))
+            return 0;
+        ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            if (checkpoint.getInt() != CHECKPOINT_MAGIC)
+                return 0;
+            int blockCount = checkpoint.getInt();
+            long location = checkpoint.getLong();
+            String hash = BlockCodec.getString(checkpoint);
+            crc.reset();
+            crc.update(checkpoint.array(), 0, checkpoint.position());
+            if (checkpoint.getInt() != (int) crc.getValue())
+                return 0;
+            int segment = (int) (location >>> 32);
+            if (segment >= segments.size() || (location & 0xFFFFFFFFL) > segments.get(segment).size()
+                    || indexFile.size() < (long) blockCount * 8)
+                return 0;
+
+            ByteBuffer entries = ByteBuffer.allocate(blockCount * 8);
+            readFully(indexFile, entries, 0);
+            entries.flip();
+            locations = new long[Math.max(1024, blockCount + blockCount / 2)];
+            entries.asLongBuffer().get(locations, 0, blockCount);
+            count = blockCount;
+            checkpointedCount = blockCount;
+            chainHash = hash == null ? "" : hash;
+            return location;
+        } catch (RuntimeException e) {
+            // A damaged checkpoint only costs a full scan of the log
+            System.out.println("Ignoring unreadable checkpoint: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * Replays the log from the given position and cuts off a torn record at its end, along with anything after it
+     */
+    private void recover(int segment, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        int scanned = 0;
+        while (true) {
+            FileChannel channel = segments.get(segment);
+            long size = channel.size();
+            boolean torn = false;
+            while (offset < size) {
+                if (size - offset < RECORD_HEADER_LENGTH) {
+                    torn = true;
+                    break;
+                }
+                header.clear();
+                readFully(channel, header, offset);
+                int length = header.getInt(0);
+                if (length <= 0 || length > size - offset - RECORD_HEADER_LENGTH) {
+                    torn = true;
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, offset + RECORD_HEADER_LENGTH);
+                crc.reset();
+                crc.update(payload.array(), 0, length);
+                if (header.getInt(4) != (int) crc.getValue()) {
+                    torn = true;
+                    break;
+                }
+                payload.flip();
+                replay(payload, location(segment, offset));
+                offset += RECORD_HEADER_LENGTH + length;
+                scanned++;
+            }
+            if (torn) {
+                System.out.println("Truncating torn log record in segment " + segment + " at offset " + offset);
+                channel.truncate(offset);
+                while (segments.size() > segment + 1) {
+                    segments.remove(segments.size() - 1).close();
+                    Files.delete(segmentPath(segments.size()));
+                }
+            }
+            if (segment == segments.size() - 1)
+                break;
+            segment++;
+            offset = 0;
+        }
+        currentSegment = segments.get(segment);
+        writeOffset = offset;
+        recordsSinceCheckpoint = scanned;
+    }
+
+    /**
+     * Applies one record of the log to the index and the chain hash
+     */
+    private void replay(ByteBuffer payload, long location) throws IOException {
+        byte type = payload.get();
+        if (type == RECORD_APPEND) {
+            chainHash = BlockCodec.getString(payload);
+            setLocation(BlockCodec.peekIndex(payload), location);
+        } else if (type == RECORD_UPDATE) {
+            setLocation(BlockCodec.peekIndex(payload), location);
+        } else if (type == RECORD_CHAIN_HASH) {
+            chainHash = BlockCodec.getString(payload);
+        } else if (type == RECORD_TRUNCATE) {
+            chainHash = BlockCodec.getString(payload);
+            truncated(payload.getInt());
+        } else {
+            throw new IOException("Unknown record type " + type + " at " + Long.toHexString(location));
+        }
+    }
+
+    private long writeRecord(byte type, String hash, Block block) {
+        return writeRecord(type, hash, block, -1);
+    }
+
+    /**
+     * Encodes one record and appends it to the log
+     * @param size Number of blocks kept by a truncate record, -1 for the other records
+     * @return the location of the record
+     */
+    private long writeRecord(byte type, String hash, Block block, int size) {
+        if (closed)
+            throw new IllegalStateException("Block store is closed");
+        while (true) {
+            try {
+                recordBuffer.clear();
+                recordBuffer.position(RECORD_HEADER_LENGTH);
+                recordBuffer.put(type);
+                if (hash != null)
+                    BlockCodec.putString(recordBuffer, hash);
+                if (block != null)
+                    BlockCodec.encode(block, recordBuffer);
+                if (size >= 0)
+                    recordBuffer.putInt(size);
+                break;
+            } catch (BufferOverflowException e) {
+                recordBuffer = ByteBuffer.allocate(recordBuffer.capacity() * 2);
+            }
+        }
+        int length = recordBuffer.position() - RECORD_HEADER_LENGTH;
+        crc.reset();
+        crc.update(recordBuffer.array(), RECORD_HEADER_LENGTH, length);
+        recordBuffer.putInt(0, length);
+        recordBuffer.putInt(4, (int) crc.getValue());
+        recordBuffer.flip();
+
+        try {
+            if (writeOffset > 0 && writeOffset + recordBuffer.remaining() > segmentBytes)
+                rollSegment();
+            long location = location(segments.size() - 1, writeOffset);
+            writeFully(currentSegment, recordBuffer, writeOffset);
+            writeOffset += RECORD_HEADER_LENGTH + length;
+            recordsWritten++;
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                currentSegment.force(false);
+                recordsSynced = recordsWritten;
+            }
+            recordsSinceCheckpoint++;
+            return location;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write to the block store", e);
+        }
+    }
+
+    /**
+     * Forces the full segment to disk and continues the log in a new one
+     */
+    private void rollSegment() throws IOException {
+        currentSegment.force(false);
+        FileChannel next = openNewSegment(segments.size());
+        segments.add(next);
+        currentSegment = next;
+        writeOffset = 0;
+    }
+
+    private FileChannel openNewSegment(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads the payload of the record at the given location and checks its CRC
+     */
+    private ByteBuffer readRecord(long location) throws IOException {
+        FileChannel channel = segments.get((int) (location >>> 32));
+        long offset = location & 0xFFFFFFFFL;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(channel, header, offset);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+        readFully(channel, payload, offset + RECORD_HEADER_LENGTH);
+        CRC32 readCrc = new CRC32();
+        readCrc.update(payload.array(), 0, payload.capacity());
+        if (header.getInt(4) != (int) readCrc.getValue())
+            throw new IOException("Corrupt record at " + Long.toHexString(location));
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Forces the log to disk if records were written since the last time, run by the PERIODIC flusher.
+     * The records are only counted as synced once the fsync succeeded, so a failed one is retried at the next run.
+     * It does not take the store's lock, writes go on during the fsync: the ones it may miss are forced next time
+     */
+    private void flush() {
+        long written = recordsWritten;
+        if (recordsSynced >= written)
+            return;
+        try {
+            // Read after the count, a segment rolled over meanwhile was forced when the log left it
+            currentSegment.force(false);
+            recordsSynced = written;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void checkpointIfDue() {
+        if (recordsSinceCheckpoint < checkpointInterval)
+            return;
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write a checkpoint", e);
+        }
+    }
+
+    private void setLocation(int index, long location) {
+        if (index >= locations.length) {
+            long[] grown = new long[Math.max(index + 1, locations.length * 2)];
+            System.arraycopy(locations, 0, grown, 0, count);
+            locations = grown;
+        }
+        locations[index] = location;
+        if (index >= count)
+            count = index + 1;
+        if (index < checkpointedCount)
+            updatedSinceCheckpoint.set(index);
+    }
+
+    /**
+     * Forgets the blocks from the given index on, so that the next ones appended take their places
+     */
+    private void truncated(int size) {
+        count = Math.min(count, size);
+        // The index entries of the blocks appended next are saved from there by the next checkpoint
+        checkpointedCount = Math.min(checkpointedCount, count);
+        updatedSinceCheckpoint.clear(count, Math.max(count, updatedSinceCheckpoint.length()));
+        synchronized (cache) {
+            cache.keySet().removeIf(i -> i >= size);
+        }
+    }
+
+    private void cachePut(Block block) {
+        synchronized (cache) {
+            cache.put(block.getIndex(), block);
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("segment-%08d.log", segment));
+    }
+
+    private static long location(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new EOFException("Unexpected end of " + channel);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position() - start);
+    }
+}
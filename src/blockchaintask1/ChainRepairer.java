@@ -0,0 +1,173 @@
+package blockchaintask1;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class repairs a {@link BlockChain}, doing as little work as it can.
+ * The chain is first checked by a {@link ChainValidator}, from the blocks known to be valid on, which hashes the
+ * blocks on every core. Repairing then starts at the first invalid block. Fixing a block changes its hash, so the
+ * next block gets the new previous hash, which cascades down the chain. A block whose hash still has enough
+ * leading zeroes after its previous hash was updated keeps its nonce, only the others are mined again, with the
+ * parallel nonce search of the {@link Miner}. Once a block comes out of the repair unchanged the cascade stops,
+ * and the repair jumps straight to the next block the validator found invalid.
+ * The repair can be cancelled from another thread. It then stops between two blocks, or in the middle of a nonce
+ * search, leaving the blocks already repaired in place, and the chain can be repaired again later.
+ * Its progress, the blocks mined again and the hashes spent can be read while it runs.
+ */
+public class ChainRepairer {
+    private final BlockChain chain;
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    // Only written by the repairing thread, read by any thread asking for the progress
+    private volatile int position;
+    private volatile int chainSize;
+    private volatile int blocksRepaired;
+    private volatile int blocksRemined;
+    private volatile long hashesSpent;
+
+    /**
+     * @param chain Chain to repair. It must not be changed by anything else while it is repaired
+     */
+    public ChainRepairer(BlockChain chain) {
+        this.chain = chain;
+    }
+
+    /**
+     * Repairs the chain, unless cancelled first. The repaired blocks are written to the chain's store, if it has one
+     * @return true if the chain is now valid, false if the repair was cancelled
+     */
+    public boolean repair() {
+        int size = chain.getChainSize();
+        chainSize = size;
+        if (size == 0)
+            return true;
+        int start = Math.min(chain.getVerifiedCount(), size);
+        position = start;
+        List<Integer> invalid = ChainValidator.validate(chain, start).getInvalidIndexes();
+        hashesSpent += size - start;
+
+        int nextInvalid = 0;
+        int i = invalid.isEmpty() ? size : invalid.get(0);
+        String previousHash = null;     // Hash of block i - 1, null until it is needed
+        String hash = null;             // Hash of the last block repaired
+        int hashed = -1;                // Index of that block
+        while (i < size) {
+            if (cancelled.get())
+                return false;
+            position = i;
+            Block block = chain.getBlock(i);
+            if (i > 0 && previousHash == null)
+                previousHash = hash(chain.getBlock(i - 1));
+
+            boolean changed = repairMerkleRoot(block);
+            if (i > 0 && !previousHash.equals(block.getPreviousHash())) {
+                block.setPreviousHash(previousHash);
+                changed = true;
+            }
+            hash = hash(block);
+            if (!DifficultyTarget.isMet(block, hash)) {
+                MiningResult result = Miner.mineForRepair(block, cancelled);
+                if (result == null) {
+                    // Keep what was fixed so far, a later repair finds the block invalid again
+                    if (changed)
+                        chain.updateBlock(block);
+                    return false;
+                }
+                hashesSpent += result.getAttempts();
+                block.setNonce(result.getNonce());
+                hash = result.getHash();
+                blocksRemined++;
+                changed = true;
+            }
+            hashed = i;
+            if (changed) {
+                chain.rehashed(block, hash);
+                chain.updateBlock(block);
+                blocksRepaired++;
+            }
+
+            while (nextInvalid < invalid.size() && invalid.get(nextInvalid) <= i)
+                nextInvalid++;
+            if (changed) {
+                previousHash = hash;
+                i++;
+            } else {
+                // The block kept its hash, so the blocks after it are only wrong if the validator said so
+                previousHash = null;
+                i = nextInvalid < invalid.size() ? invalid.get(nextInvalid) : size;
+            }
+        }
+        position = size;
+        // The chain hash is the hash of the last block, even if nothing had to be repaired
+        if (hashed != size - 1)
+            hash = hash(chain.getBlock(size - 1));
+        chain.repaired(hash);
+        return true;
+    }
+
+    /**
+     * Asks the repair to stop as soon as it can. The thread running {@link #repair()} returns false
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return index of the block being repaired, the chain size once the repair is done
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public int getChainSize() {
+        return chainSize;
+    }
+
+    /**
+     * @return number of blocks that had to be changed
+     */
+    public int getBlocksRepaired() {
+        return blocksRepaired;
+    }
+
+    /**
+     * @return number of blocks whose proof of work had to be computed again
+     */
+    public int getBlocksRemined() {
+        return blocksRemined;
+    }
+
+    /**
+     * @return number of hashes computed, to check the blocks and to mine them again
+     */
+    public long getHashesSpent() {
+        return hashesSpent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("At block %d of %d, %d blocks repaired, %d blocks re-mined, %d hashes spent%s",
+                position, chainSize, blocksRepaired, blocksRemined, hashesSpent, isCancelled() ? ", cancelled" : "");
+    }
+
+    private String hash(Block block) {
+        hashesSpent++;
+        return block.calculateHash();
+    }
+
+    /**
+     * Puts the Merkle root of a block's current transactions into its header
+     * @return true if the root had to be changed
+     */
+    private static boolean repairMerkleRoot(Block b) {
+        if (b.hasValidMerkleRoot())
+            return false;
+        b.setMerkleRoot(MerkleTree.root(b.getTransactions()));
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package blockchaintask1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A ChainStore keeps the blocks of a {@link BlockChain} outside of the heap, so that the chain survives a restart.
+ * There are two kinds of store, picked with -Dstore.type:
+ * 1. log (the default) - {@link BlockStore}, an append-only log of blocks with checkpoints
+ * 2. mapped - {@link MappedBlockStore}, fixed size block headers in memory-mapped files
+ * The chain is told about every change: appended blocks, blocks changed in place, a new chain hash, and the blocks
+ * dropped when the chain switches to a fork with more work.
+ * Blocks are read back when they are asked for, through the list returned by {@link #getBlocks()}.
+ * Writes must not overlap with each other or with reads, which the chain's write lock in {@link ServerModel}
+ * guarantees.
+ */
+public interface ChainStore extends Closeable {
+
+    /**
+     * Opens the store of the kind given by -Dstore.type, configured from the other store.* system properties
+     * @param directory Directory of the store
+     */
+    static ChainStore fromSystemProperties(String directory) throws IOException {
+        String type = System.getProperty("store.type", "log");
+        if (type.equals("mapped"))
+            return MappedBlockStore.fromSystemProperties(directory);
+        if (type.equals("log"))
+            return BlockStore.fromSystemProperties(directory);
+        throw new IllegalArgumentException("Unknown store type " + type + ", expected log or mapped");
+    }
+
+    /**
+     * @return a read only view of the stored blocks, which reads them as they are asked for
+     */
+    default List<Block> getBlocks() {
+        return new BlockList(this);
+    }
+
+    /**
+     * @return number of stored blocks
+     */
+    int size();
+
+    /**
+     * @return the chain hash saved with the blocks, the empty String for an empty store
+     */
+    String getChainHash();
+
+    /**
+     * Appends a newly mined block
+     * @param block Block whose index is the current size of the store
+     * @param chainHash Hash of the block, which becomes the chain hash
+     */
+    void append(Block block, String chainHash);
+
+    /**
+     * Stores the new state of a block that was changed in place
+     * @param block Block already in the store, identified by its index
+     */
+    void update(Block block);
+
+    /**
+     * Stores a new chain hash, after the chain was repaired
+     */
+    void setChainHash(String chainHash);
+
+    /**
+     * Drops the last blocks, when the chain switches to a fork with more work
+     * @param size Number of blocks kept
+     * @param chainHash Hash of the last block kept, which becomes the chain hash
+     */
+    void truncate(int size, String chainHash);
+
+    /**
+     * Reads one block
+     * @param i index of the block
+     */
+    Block read(int i);
+
+    /**
+     * The list view of a store handed to {@link BlockChain}
+     */
+    class BlockList extends AbstractList<Block> implements RandomAccess {
+        private final ChainStore store;
+
+        BlockList(ChainStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Block get(int i) {
+            if (i < 0 || i >= store.size())
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + store.size());
+            return store.read(i);
+        }
+
+        @Override
+        public int size() {
+            return store.size();
+        }
+    }
+}
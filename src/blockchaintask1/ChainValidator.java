@@ -0,0 +1,205 @@
+package blockchaintask1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class checks the blocks of a {@link BlockChain} on every core.
+ * The proof of work and the Merkle root of a block only depend on the block itself, so the blocks are hashed
+ * concurrently, in chunks, on a fork-join pool. Each block's SHA-256 digest and the bytes of its previous hash
+ * are kept in arrays, and a second, sequential pass checks that every block points to the digest of the block
+ * before it, which is a cheap comparison of bytes.
+ * The chain is handled in windows of WINDOW_BLOCKS blocks, so the arrays stay small however long the chain is.
+ * Every invalid block is reported, with what is wrong with it.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/RecursiveAction.html
+ */
+public class ChainValidator {
+    public static final int BAD_LINK = 1;               // Previous hash does not match the block before
+    public static final int BAD_PROOF_OF_WORK = 2;      // Hash does not have enough leading zeroes, or is above the target
+    public static final int BAD_MERKLE_ROOT = 4;        // Transactions do not match the Merkle root
+
+    private static final int HASH_BYTES = 32;
+    private static final int WINDOW_BLOCKS = 64 * 1024;
+    // Blocks hashed by one fork-join task
+    private static final int CHUNK_BLOCKS = 512;
+
+    /**
+     * The outcome of a validation: every invalid block, in chain order, with its problems
+     */
+    public static class Result {
+        private final Map<Integer, Integer> problems = new LinkedHashMap<>();
+
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+
+        /**
+         * @return indexes of the invalid blocks, in increasing order
+         */
+        public List<Integer> getInvalidIndexes() {
+            return new ArrayList<>(problems.keySet());
+        }
+
+        /**
+         * @return index of the first invalid block, or -1 if the chain is valid
+         */
+        public int getFirstInvalid() {
+            return problems.isEmpty() ? -1 : problems.keySet().iterator().next();
+        }
+
+        /**
+         * @param index index of a block
+         * @return the problems of the block, as a mix of BAD_LINK, BAD_PROOF_OF_WORK and BAD_MERKLE_ROOT,
+         * 0 if it is valid
+         */
+        public int getProblems(int index) {
+            return problems.getOrDefault(index, 0);
+        }
+
+        public Map<Integer, Integer> getProblems() {
+            return Collections.unmodifiableMap(problems);
+        }
+
+        private void add(int index, int problem) {
+            if (problem != 0)
+                problems.merge(index, problem, (a, b) -> a | b);
+        }
+    }
+
+    private ChainValidator() {
+    }
+
+    /**
+     * Checks the blocks of the chain from the given index to the end
+     * @param chain Chain to check. It must not change while it is checked
+     * @param from Index of the first block to check. Its link is checked against the block before it, which is
+     *             trusted to be valid
+     * @return every invalid block found
+     */
+    public static Result validate(BlockChain chain, int from) {
+        Result result = new Result();
+        int chainSize = chain.getChainSize();
+        byte[] previousDigest = from == 0 ? null : digest(chain.getBlock(from - 1));
+
+        for (int windowStart = from; windowStart < chainSize; windowStart += WINDOW_BLOCKS) {
+            int windowSize = Math.min(WINDOW_BLOCKS, chainSize - windowStart);
+            Window window = new Window(chain, windowStart, windowSize);
+            // First pass: hash every block of the window concurrently
+            ForkJoinPool.commonPool().invoke(new HashTask(window, 0, windowSize));
+
+            // Second pass: check the links in chain order
+            for (int i = 0; i < windowSize; i++) {
+                int index = windowStart + i;
+                int problem = window.problems[i];
+                if (index > 0 && (!window.hasPreviousHash[i] || previousDigest == null
+                        || !regionEquals(window.previousHashes, i, previousDigest, 0))) {
+                    problem |= BAD_LINK;
+                }
+                result.add(index, problem);
+                previousDigest = window.digest(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the SHA-256 digest of a block's header
+     */
+    private static byte[] digest(Block block) {
+        return Utils.getSHA256Digest().digest(block.getHashInput().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean regionEquals(byte[] a, int blockA, byte[] b, int blockB) {
+        int fromA = blockA * HASH_BYTES;
+        int fromB = blockB * HASH_BYTES;
+        return Arrays.equals(a, fromA, fromA + HASH_BYTES, b, fromB, fromB + HASH_BYTES);
+    }
+
+    /**
+     * The digests, previous hashes and problems of a range of blocks
+     */
+    private static class Window {
+        final BlockChain chain;
+        final int start;
+        final byte[] digests;
+        final byte[] previousHashes;
+        final boolean[] hasPreviousHash;    // False if the previous hash is not a SHA-256 hex String
+        final int[] problems;
+
+        Window(BlockChain chain, int start, int size) {
+            this.chain = chain;
+            this.start = start;
+            digests = new byte[size * HASH_BYTES];
+            previousHashes = new byte[size * HASH_BYTES];
+            hasPreviousHash = new boolean[size];
+            problems = new int[size];
+        }
+
+        byte[] digest(int i) {
+            byte[] d = new byte[HASH_BYTES];
+            System.arraycopy(digests, i * HASH_BYTES, d, 0, HASH_BYTES);
+            return d;
+        }
+    }
+
+    /**
+     * Hashes a range of a window, splitting it in halves until it is CHUNK_BLOCKS blocks or less
+     */
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Window window;
+        private final int from;
+        private final int to;
+
+        HashTask(Window window, int from, int to) {
+            this.window = window;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK_BLOCKS) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(window, from, middle), new HashTask(window, middle, to));
+                return;
+            }
+            MessageDigest md = Utils.getSHA256Digest();
+            byte[] digest = new byte[HASH_BYTES];
+            for (int i = from; i < to; i++) {
+                Block block = window.chain.getBlock(window.start + i);
+                try {
+                    md.update(block.getHashInput().getBytes(StandardCharsets.UTF_8));
+                    md.digest(digest, 0, HASH_BYTES);
+                } catch (DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+                System.arraycopy(digest, 0, window.digests, i * HASH_BYTES, HASH_BYTES);
+                if (!DifficultyTarget.isMet(block, digest))
+                    window.problems[i] |= BAD_PROOF_OF_WORK;
+                if (!block.hasValidMerkleRoot())
+                    window.problems[i] |= BAD_MERKLE_ROOT;
+
+                // Compared as bytes in the second pass, so only a hash that converts back to the same String is kept
+                byte[] previousHash = Utils.convertHexadecimalToBytes(block.getPreviousHash());
+                if (previousHash != null && previousHash.length == HASH_BYTES
+                        && Utils.convertByteToHexadecimal(previousHash).equals(block.getPreviousHash())) {
+                    System.arraycopy(previousHash, 0, window.previousHashes, i * HASH_BYTES, HASH_BYTES);
+                    window.hasPreviousHash[i] = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package blockchaintask1;
+
+/**
+ * The operations a {@link BlockChainClientTCP} can ask a {@link BlockChainServerTCP} to do.
+ * Each command keeps the number of its menu choice, which is also its code on the wire.
+ * Choice 6 is the client's exit, so commands that are not on the interactive menu start at 7.
+ * GET_BLOCKS, GET_HEADERS, GET_BODIES and ANNOUNCE are sent by the other nodes of a {@link PeerNetwork}.
+ */
+public enum Command {
+    STATUS(0, Access.READ),
+    ADD(1, Access.NONE),
+    VERIFY(2, Access.READ),
+    VIEW(3, Access.READ),
+    CORRUPT(4, Access.WRITE),
+    REPAIR(5, Access.WRITE),
+    ADD_BATCH(7, Access.NONE),
+    SUBMIT(8, Access.NONE),
+    TX_STATUS(9, Access.NONE),
+    VERIFY_FULL(10, Access.READ),
+    REPAIR_STATUS(11, Access.NONE),
+    REPAIR_CANCEL(12, Access.NONE),
+    VIEW_RANGE(13, Access.NONE),
+    METRICS(14, Access.NONE),
+    GET_BLOCK(15, Access.READ),
+    GET_TRANSACTION(16, Access.READ),
+    GET_BLOCKS(17, Access.READ),
+    ANNOUNCE(18, Access.NONE),
+    GET_HEADERS(19, Access.READ),
+    GET_BODIES(20, Access.READ),
+    MINING_CANCEL(21, Access.NONE);
+
+    /**
+     * How a command uses the chain, which decides the lock it takes
+     */
+    public enum Access {
+        NONE,   // Only touches the mempool or a running repair, or takes the lock itself when it needs it, as mining does
+        READ,
+        WRITE
+    }
+
+    private final int choice;
+    private final Access access;
+
+    Command(int choice, Access access) {
+        this.choice = choice;
+        this.access = access;
+    }
+
+    public int getChoice() {
+        return choice;
+    }
+
+    /**
+     * @return true if the command changes the chain, so it must not run at the same time as any other command
+     */
+    public boolean modifiesChain() {
+        return access == Access.WRITE;
+    }
+
+    public Access getAccess() {
+        return access;
+    }
+
+    /**
+     * Finds the command for a menu choice
+     * @param choice number entered by the user or sent on the wire
+     * @return the matching command, or null if there is none
+     */
+    public static Command fromChoice(int choice) {
+        for (Command command : values()) {
+            if (command.choice == choice)
+                return command;
+        }
+        return null;
+    }
+}
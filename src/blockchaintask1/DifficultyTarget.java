@@ -0,0 +1,169 @@
+package blockchaintask1;
+
+import java.math.BigInteger;
+
+/**
+ * This class turns a fractional difficulty into a numeric target that a block's hash must not exceed.
+ * A whole difficulty d asks for d leading hex zeroes, which is the same as a hash, read as a 256 bit number,
+ * below 16^(64 - d). A target allows any difficulty in between: the expected number of hashes to mine a block is
+ * 2^256 / (target + 1), 16^d for a fractional d.
+ * Targets are kept in the compact form Bitcoin uses for its "bits": the top byte is the size of the target in
+ * bytes, and the three low bytes are its most significant bytes. A block whose bits are 0 has no target and is
+ * checked against its whole difficulty as before, so existing chains hash and validate exactly as they did.
+ * A target is at most 32 bytes, so bits with a larger size are rejected, and never meet a block's proof of work.
+ *
+ * References:
+ * 1. https://en.bitcoin.it/wiki/Difficulty
+ * 2. https://developer.bitcoin.org/reference/block_chain.html#target-nbits
+ */
+public final class DifficultyTarget {
+    private static final int HASH_BYTES = 32;
+    private static final BigInteger TWO_256 = BigInteger.ONE.shiftLeft(256);
+    private static final BigInteger MAX_TARGET = TWO_256.subtract(BigInteger.ONE);
+
+    private DifficultyTarget() {
+    }
+
+    /**
+     * Checks a block's proof of work
+     * @param block Block whose hash was computed
+     * @param digest Raw SHA-256 hash of the block
+     * @return true if the hash meets the block's target, or has the block's leading zeroes if it has no target
+     */
+    public static boolean isMet(Block block, byte[] digest) {
+        if (block.getBits() == 0)
+            return Utils.hasLeadingZeroes(digest, block.getDifficulty());
+        return isValid(block.getBits()) && isMet(toBytes(block.getBits()), digest);
+    }
+
+    /**
+     * Checks a block's proof of work, like {@link #isMet(Block, byte[])}, from the hex form of its hash
+     */
+    public static boolean isMet(Block block, String hash) {
+        if (block.getBits() == 0)
+            return Utils.hasLeadingZeroes(hash, block.getDifficulty());
+        byte[] digest = Utils.convertHexadecimalToBytes(hash);
+        return digest != null && digest.length == HASH_BYTES && isValid(block.getBits())
+                && isMet(toBytes(block.getBits()), digest);
+    }
+
+    /**
+     * @param target Target as 32 big endian bytes, see {@link #toBytes(int)}
+     * @param digest Raw SHA-256 hash
+     * @return true if the hash, read as an unsigned number, is not above the target
+     */
+    public static boolean isMet(byte[] target, byte[] digest) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int a = digest[i] & 0xFF;
+            int b = target[i] & 0xFF;
+            if (a != b)
+                return a < b;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the size of compact bits is at most 32 bytes, the size of a hash
+     */
+    public static boolean isValid(int bits) {
+        return bits >>> 24 <= HASH_BYTES;
+    }
+
+    /**
+     * Expands compact bits into the 32 big endian bytes of the target, without going through a BigInteger,
+     * so that the miner and the validator can compare hashes against it byte by byte
+     * @throws IllegalArgumentException if the target is larger than 32 bytes
+     */
+    public static byte[] toBytes(int bits) {
+        byte[] target = new byte[HASH_BYTES];
+        int size = sizeOf(bits);
+        for (int k = 0; k < 3; k++) {
+            int position = HASH_BYTES - size + k;
+            if (position >= 0 && position < HASH_BYTES)
+                target[position] = (byte) (k == 0 ? (bits >>> 16) & 0x7F : bits >>> (16 - 8 * k));
+        }
+        return target;
+    }
+
+    /**
+     * @return the target of compact bits
+     * @throws IllegalArgumentException if the target is larger than 32 bytes
+     */
+    public static BigInteger toTarget(int bits) {
+        int size = sizeOf(bits);
+        BigInteger mantissa = BigInteger.valueOf(bits & 0x007FFFFF);
+        return size <= 3 ? mantissa.shiftRight(8 * (3 - size)) : mantissa.shiftLeft(8 * (size - 3));
+    }
+
+    /**
+     * @param target Target between 1 and 2^256 - 1
+     * @return the compact bits of the target, rounded down to its three most significant bytes
+     */
+    public static int toBits(BigInteger target) {
+        int size = (target.bitLength() + 7) / 8;
+        long mantissa = size <= 3 ? target.longValue() << (8 * (3 - size))
+                : target.shiftRight(8 * (size - 3)).longValue();
+        // The high bit of the mantissa is a sign bit in Bitcoin's encoding, so it is kept clear
+        if ((mantissa & 0x00800000) != 0) {
+            mantissa >>= 8;
+            size++;
+        }
+        return (int) mantissa | size << 24;
+    }
+
+    /**
+     * @param work Expected number of hashes to mine a block, at least 1
+     * @return the compact bits of the target with that expected work
+     */
+    public static int bitsForWork(BigInteger work) {
+        BigInteger target = TWO_256.divide(work.max(BigInteger.ONE)).subtract(BigInteger.ONE);
+        return toBits(target.max(BigInteger.ONE).min(MAX_TARGET));
+    }
+
+    /**
+     * @return expected number of hashes to mine a block with the given compact bits, 2^256 / (target + 1)
+     */
+    public static BigInteger workOf(int bits) {
+        return TWO_256.divide(toTarget(bits).add(BigInteger.ONE));
+    }
+
+    /**
+     * @return expected number of hashes to mine the block: 16^difficulty, or the work of its target
+     */
+    public static BigInteger workOf(Block block) {
+        return workOf(block.getDifficulty(), block.getBits());
+    }
+
+    /**
+     * @return expected number of hashes to mine a block with the given whole difficulty and compact bits
+     */
+    public static BigInteger workOf(int difficulty, int bits) {
+        if (bits == 0)
+            return BigInteger.ONE.shiftLeft(4 * Math.max(0, difficulty));
+        return workOf(bits);
+    }
+
+    /**
+     * @return the difficulty of the block: its whole difficulty, or the fractional difficulty of its target
+     */
+    public static double difficultyOf(Block block) {
+        return block.getBits() == 0 ? block.getDifficulty() : difficultyOf(block.getBits());
+    }
+
+    private static int sizeOf(int bits) {
+        if (!isValid(bits))
+            throw new IllegalArgumentException("Target of bits " + Integer.toHexString(bits) + " is larger than "
+                    + HASH_BYTES + " bytes");
+        return bits >>> 24;
+    }
+
+    /**
+     * @return the fractional difficulty, in hex digits, of compact bits: log16 of their expected work
+     */
+    public static double difficultyOf(int bits) {
+        BigInteger work = workOf(bits);
+        // Keep the top 53 bits in a double and add the rest as a power of two
+        int shift = Math.max(0, work.bitLength() - 53);
+        return (Math.log(work.shiftRight(shift).doubleValue()) / Math.log(2) + shift) / 4;
+    }
+}
@@ -0,0 +1,185 @@
+package blockchaintask1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class sends and receives {@link WireProtocol} frames over one socket.
+ * It owns one buffer for reading and one for writing, which are reused for every frame and only grow when
+ * a frame does not fit, up to the largest frame the protocol allows. It is used by both ends: the client writes requests and reads responses,
+ * the server reads requests and answers each one in the format it came in.
+ * Writes can be left unflushed, so that a batch of pipelined frames goes out in as few packets as possible.
+ * A FrameConnection is not thread safe, but reading and writing use separate buffers and streams,
+ * so one thread may read while another one writes.
+ */
+public class FrameConnection implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    // The largest frame and its length prefix
+    private static final int MAX_WRITE_BUFFER_SIZE = WireProtocol.MAX_FRAME_LENGTH + 4;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private byte format;            // Format used for the requests this end writes
+    private byte lastReadFormat;    // Format of the last frame read, responses are written in it
+
+    /**
+     * @param socket Connected socket
+     * @param format WireProtocol.FORMAT_BINARY or WireProtocol.FORMAT_JSON for the requests written by this end
+     */
+    public FrameConnection(Socket socket, byte format) throws IOException {
+        this.socket = socket;
+        this.format = format;
+        this.lastReadFormat = format;
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Sends a request right away
+     * @param request Request to send in this connection's format
+     */
+    public void writeRequest(Request request) throws IOException {
+        writeRequest(request, true);
+    }
+
+    /**
+     * Sends a request
+     * @param request Request to send in this connection's format
+     * @param flush false to leave the frame buffered, when more requests follow right after it
+     * @throws ProtocolException if the request is larger than the largest frame, nothing is sent then
+     */
+    public void writeRequest(Request request, boolean flush) throws IOException {
+        while (true) {
+            try {
+                writeBuffer.clear();
+                WireProtocol.encodeRequest(request, format, writeBuffer, encoder);
+                break;
+            } catch (BufferOverflowException e) {
+                growWriteBuffer();
+            }
+        }
+        writeFrame(flush);
+    }
+
+    /**
+     * Waits for the next request
+     * @return the request, or null if the other end closed the connection
+     */
+    public Request readRequest() throws IOException {
+        if (!readFrame())
+            return null;
+        lastReadFormat = WireProtocol.readFrameHeader(readBuffer);
+        return WireProtocol.decodeRequest(readBuffer, lastReadFormat);
+    }
+
+    /**
+     * Sends a response in the format of the last request read
+     * @param text Response text
+     * @param status WireProtocol.STATUS_OK, WireProtocol.STATUS_ERROR or WireProtocol.STATUS_PARTIAL
+     * @param correlationId Correlation id of the request being answered
+     * @param flush false to leave the frame buffered, when more responses follow right after it
+     * @throws ProtocolException if the response is larger than the largest frame, nothing is sent then
+     */
+    public void writeResponse(String text, byte status, int correlationId, boolean flush) throws IOException {
+        while (true) {
+            try {
+                writeBuffer.clear();
+                WireProtocol.encodeResponse(text, status, correlationId, lastReadFormat, writeBuffer, encoder);
+                break;
+            } catch (BufferOverflowException e) {
+                growWriteBuffer();
+            }
+        }
+        writeFrame(flush);
+    }
+
+    /**
+     * Waits for the next response
+     * @return the response
+     * @throws EOFException if the other end closed the connection
+     */
+    public Response readResponse() throws IOException {
+        if (!readFrame())
+            throw new EOFException("Connection closed by the server");
+        byte responseFormat = WireProtocol.readFrameHeader(readBuffer);
+        return WireProtocol.decodeResponse(readBuffer, responseFormat);
+    }
+
+    /**
+     * @return true if bytes of the next frame have already arrived, so the next read will not wait for the network
+     */
+    public boolean hasBufferedInput() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * Sends frames that were written without a flush
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void setFormat(byte format) {
+        this.format = format;
+    }
+
+    /**
+     * Reads one frame into the read buffer, growing it if needed
+     * @return false if the connection was closed before a new frame started
+     */
+    private boolean readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < WireProtocol.HEADER_LENGTH || length > WireProtocol.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Invalid frame length " + length);
+        if (readBuffer.capacity() < length)
+            readBuffer = ByteBuffer.allocate(Math.max(length, readBuffer.capacity() * 2));
+        readBuffer.clear();
+        in.readFully(readBuffer.array(), 0, length);
+        readBuffer.limit(length);
+        return true;
+    }
+
+    /**
+     * Doubles the write buffer, up to the size of the largest frame
+     * @throws ProtocolException if it already has that size, the frame being written is too large
+     */
+    private void growWriteBuffer() throws ProtocolException {
+        if (writeBuffer.capacity() >= MAX_WRITE_BUFFER_SIZE)
+            throw new ProtocolException("Frame larger than " + WireProtocol.MAX_FRAME_LENGTH + " bytes");
+        writeBuffer = ByteBuffer.allocate((int) Math.min(2L * writeBuffer.capacity(), MAX_WRITE_BUFFER_SIZE));
+    }
+
+    private void writeFrame(boolean flush) throws IOException {
+        out.write(writeBuffer.array(), 0, writeBuffer.position());
+        if (flush)
+            out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
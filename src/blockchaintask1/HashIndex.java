@@ -0,0 +1,150 @@
+package blockchaintask1;
+
+import java.util.Arrays;
+
+/**
+ * HashIndex maps SHA-256 hashes to block indexes without a String or an object per entry.
+ * A hash is kept as two longs holding its last 32 hex digits, 128 bits, in open addressing arrays probed
+ * linearly. The last digits are used rather than the first ones because a proof of work makes the first digits
+ * of every block hash zeroes. Two hashes sharing their last 128 bits would overwrite each other, so callers confirm
+ * what they find against the full hash held by the chain.
+ * An entry takes 20 bytes, and the arrays are at most half full, so lookups stay short whatever the chain size.
+ * Removing an entry shifts the entries probed after it back, so the table never fills up with deleted slots.
+ * It is not thread safe, {@link BlockChain} synchronizes on itself around it.
+ *
+ * References:
+ * 1. https://en.wikipedia.org/wiki/Open_addressing
+ * 2. https://en.wikipedia.org/wiki/Linear_probing#Deletion
+ */
+public class HashIndex {
+    private static final int KEY_DIGITS = 32;
+
+    private long[] high;
+    private long[] low;
+    private int[] values;   // Value + 1, 0 for an empty slot
+    private int size;
+
+    public HashIndex() {
+        allocate(16);
+    }
+
+    /**
+     * Maps a hash to a value, replacing the value it had
+     * @param hash Hex SHA-256 hash, in either case
+     * @param value Value to find it by, at least 0
+     */
+    public void put(String hash, int value) {
+        if (!isHash(hash))
+            return;
+        if (2 * (size + 1) > values.length)
+            allocate(2 * values.length);
+        insert(key(hash, 0), key(hash, KEY_DIGITS / 2), value);
+    }
+
+    /**
+     * @param hash Hex SHA-256 hash, in either case
+     * @return the value of the hash, -1 if it has none
+     */
+    public int get(String hash) {
+        if (!isHash(hash))
+            return -1;
+        int slot = find(key(hash, 0), key(hash, KEY_DIGITS / 2));
+        return slot < 0 ? -1 : values[slot] - 1;
+    }
+
+    /**
+     * Removes a hash, if it still has the given value
+     * @param hash Hex SHA-256 hash, in either case
+     * @param value Value the hash was put with
+     */
+    public void remove(String hash, int value) {
+        if (!isHash(hash))
+            return;
+        int slot = find(key(hash, 0), key(hash, KEY_DIGITS / 2));
+        if (slot < 0 || values[slot] - 1 != value)
+            return;
+        int mask = values.length - 1;
+        values[slot] = 0;
+        size--;
+        // Move back every entry of the run after the slot that would no longer be reached past the hole
+        int hole = slot;
+        for (int i = (slot + 1) & mask; values[i] != 0; i = (i + 1) & mask) {
+            int home = slotOf(high[i], low[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                high[hole] = high[i];
+                low[hole] = low[i];
+                values[hole] = values[i];
+                values[i] = 0;
+                hole = i;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private int find(long h, long l) {
+        int mask = values.length - 1;
+        for (int i = slotOf(h, l); values[i] != 0; i = (i + 1) & mask) {
+            if (high[i] == h && low[i] == l)
+                return i;
+        }
+        return -1;
+    }
+
+    private void insert(long h, long l, int value) {
+        int mask = values.length - 1;
+        int i = slotOf(h, l);
+        while (values[i] != 0 && (high[i] != h || low[i] != l))
+            i = (i + 1) & mask;
+        if (values[i] == 0)
+            size++;
+        high[i] = h;
+        low[i] = l;
+        values[i] = value + 1;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldHigh = high;
+        long[] oldLow = low;
+        int[] oldValues = values;
+        high = new long[capacity];
+        low = new long[capacity];
+        values = new int[capacity];
+        size = 0;
+        if (oldValues != null) {
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != 0)
+                    insert(oldHigh[i], oldLow[i], oldValues[i] - 1);
+            }
+        }
+    }
+
+    private int slotOf(long h, long l) {
+        // The digits are already uniformly distributed, mixing the two halves is enough
+        long mixed = (h ^ l) * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) & (values.length - 1);
+    }
+
+    private static boolean isHash(String hash) {
+        return hash != null && hash.length() == 2 * KEY_DIGITS;
+    }
+
+    /**
+     * Reads 16 hex digits of the last 32 of a hash, without a substring
+     * @param offset 0 for the high long, 16 for the low long
+     */
+    private static long key(String hash, int offset) {
+        long key = 0;
+        int start = hash.length() - KEY_DIGITS + offset;
+        for (int i = start; i < start + KEY_DIGITS / 2; i++)
+            key = key << 4 | Character.digit(hash.charAt(i), 16) & 0xF;
+        return key;
+    }
+}
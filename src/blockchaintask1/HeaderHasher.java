@@ -0,0 +1,111 @@
+package blockchaintask1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * This class is the hashing hot path of the {@link Miner}.
+ * A block's hash is the SHA-256 of the UTF-8 bytes of index + timestamp + data + previousHash + nonce + difficulty,
+ * with the Merkle root in place of the data for blocks holding several transactions, and the target after the
+ * difficulty for blocks that have one.
+ * Only the nonce changes while searching, so the bytes before it are serialized into a buffer once per block.
+ * Each attempt writes the decimal digits of a primitive long nonce into that buffer in place, followed by the
+ * difficulty, and hashes the buffer into a reused digest array with a per thread {@link MessageDigest}.
+ * No objects are created per attempt. The hashes are byte for byte the same as {@link Utils#getSHA256Hash(String)}
+ * on the concatenated String, so chains mined either way validate the same.
+ * In midstate mode the prefix is not kept in the buffer at all. Its SHA-256 state is computed once by a
+ * {@link Sha256Midstate} and each attempt only hashes the end of the prefix and the nonce and difficulty digits,
+ * so the cost of an attempt no longer grows with the length of the block's data.
+ * A HeaderHasher is not thread safe and uses the MessageDigest of the thread that created it,
+ * so each mining thread creates its own.
+ */
+public class HeaderHasher {
+    // Long.MAX_VALUE has 19 decimal digits
+    private static final int MAX_NONCE_DIGITS = 19;
+    // Below this prefix length the JDK's SHA-256 hashing the whole header beats resuming from a midstate
+    private static final int AUTO_MIDSTATE_MIN_PREFIX = 512;
+
+    private final byte[] buffer;
+    private final int tailStart;                // Where the nonce digits go in the buffer
+    private final byte[] difficultySuffix;
+    private final byte[] digest = new byte[32];
+    private final MessageDigest md;             // Used when hashing the whole header
+    private final Sha256Midstate midstate;      // Used when resuming from the prefix state
+
+    /**
+     * Serializes the part of the block header that comes before the nonce and hashes it in full on every attempt
+     * @param block Block that is being mined. Later changes to the block are not seen by this hasher
+     */
+    public HeaderHasher(Block block) {
+        this(block, Miner.Hashing.FULL_HEADER);
+    }
+
+    /**
+     * Serializes the part of the block header that comes before the nonce
+     * @param block Block that is being mined. Later changes to the block are not seen by this hasher
+     * @param hashing whether to hash the whole header per attempt, or to compute the SHA-256 state of the prefix
+     *                once and only hash the rest per attempt. AUTO picks the midstate for long prefixes
+     */
+    public HeaderHasher(Block block, Miner.Hashing hashing) {
+        byte[] prefix = (block.getIndex() + block.getTimestamp().toString() + block.getHeaderData()
+                + block.getPreviousHash()).getBytes(StandardCharsets.UTF_8);
+        boolean useMidstate = hashing == Miner.Hashing.MIDSTATE
+                || (hashing == Miner.Hashing.AUTO && prefix.length >= AUTO_MIDSTATE_MIN_PREFIX);
+        difficultySuffix = block.getDifficultySuffix().getBytes(StandardCharsets.UTF_8);
+        int maxTailLength = MAX_NONCE_DIGITS + difficultySuffix.length;
+        if (useMidstate) {
+            midstate = new Sha256Midstate(prefix, maxTailLength);
+            md = null;
+            tailStart = 0;
+            buffer = new byte[maxTailLength];
+        } else {
+            midstate = null;
+            md = Utils.getSHA256Digest();
+            tailStart = prefix.length;
+            buffer = new byte[prefix.length + maxTailLength];
+            System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+        }
+    }
+
+    /**
+     * Computes the hash of the block for the given nonce.
+     * @param nonce non negative nonce to try
+     * @return raw SHA-256 hash. The array is reused by the next call, copy it to keep it
+     */
+    public byte[] hash(long nonce) {
+        int length = writeHeaderTail(nonce);
+        if (midstate != null) {
+            midstate.hash(buffer, length, digest);
+            return digest;
+        }
+        try {
+            md.update(buffer, 0, length);
+            md.digest(digest, 0, digest.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Unable to compute SHA-256 hash", e);
+        }
+        return digest;
+    }
+
+    /**
+     * Writes the nonce digits and the difficulty after the prefix
+     * @return number of bytes in the buffer to hash
+     */
+    private int writeHeaderTail(long nonce) {
+        int digits = 1;
+        for (long n = nonce / 10; n > 0; n /= 10)
+            digits++;
+        // Fill the digits from the least significant one backwards
+        int position = tailStart + digits;
+        long n = nonce;
+        do {
+            buffer[--position] = (byte) ('0' + (n % 10));
+            n /= 10;
+        } while (n > 0);
+
+        int suffixStart = tailStart + digits;
+        System.arraycopy(difficultySuffix, 0, buffer, suffixStart, difficultySuffix.length);
+        return suffixStart + difficultySuffix.length;
+    }
+}
@@ -0,0 +1,321 @@
+package blockchaintask1;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HeaderSync catches a node up with the chain of a peer, headers first, for the {@link PeerNetwork}.
+ * 1. Headers - the compact headers of the peer's blocks, everything their hash covers but their transactions, are
+ *    fetched with GET_HEADERS, {@link ServerModel#MAX_HEADERS_PER_REQUEST} at a time, with {@link #HEADER_WINDOW}
+ *    requests pipelined on one connection, so that a round trip brings tens of thousands of headers.
+ *    Each response is checked as it arrives: the previous hash of every header is the hash this node computed for
+ *    the header before, the first header of a response must follow the last one of the response before, and
+ *    every hash must meet its difficulty. The bodies are only fetched if the headers hold more work than the
+ *    blocks of this chain they would replace.
+ * 2. Bodies - the transactions of the blocks holding several are fetched with GET_BODIES, {@link #BODY_RANGE}
+ *    blocks per request, over several connections at once: -Dsync.connections to the peer (4 by default) and one
+ *    to every other peer. A body is checked against the Merkle root of its header as it arrives, so it can come
+ *    from any node. A connection that fails or sends a wrong body is dropped and its range is fetched by another.
+ * 3. The blocks are handed to {@link ServerModel#switchToFork}, which checks them again before switching.
+ * The data of a single transaction block is hashed as it is rather than through a root, so it is part of the
+ * header. Only the blocks holding several transactions have a body to fetch.
+ *
+ * References:
+ * 1. https://developer.bitcoin.org/devguide/p2p_network.html#headers-first
+ * 2. https://en.wikipedia.org/wiki/HTTP_pipelining
+ */
+public class HeaderSync {
+    // GET_HEADERS requests in flight on the connection to the peer
+    private static final int HEADER_WINDOW = 8;
+    // Blocks whose transactions one GET_BODIES request asks for
+    private static final int BODY_RANGE = 250;
+    // Transactions of a header whose body is not fetched yet
+    private static final List<String> PENDING = Collections.emptyList();
+
+    private final ServerModel model;
+    private final String peerAddress;
+    private final List<String> otherPeers;
+    private final int connections;
+    private int headersFetched;
+    private final AtomicInteger bodiesFetched = new AtomicInteger();
+
+    /**
+     * @param model Model of this node
+     * @param peerAddress Address of the peer to sync with, host:port
+     * @param otherPeers Addresses of other peers that bodies may also be fetched from
+     * @param connections Connections to the peer that bodies are fetched over, at least 1
+     */
+    public HeaderSync(ServerModel model, String peerAddress, List<String> otherPeers, int connections) {
+        this.model = model;
+        this.peerAddress = peerAddress;
+        this.otherPeers = otherPeers;
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Syncs with the peer
+     * @return the JSON of the new most recent block, to announce, or null if the chain kept its blocks
+     * @throws IOException if the peer cannot be reached, or the bodies cannot be fetched
+     * @throws IllegalArgumentException if a header or block sent by the peer is wrong
+     */
+    public String run() throws IOException {
+        try (BlockChainClient client = PeerNetwork.connect(peerAddress)) {
+            int size = model.readChain(BlockChain::getChainSize);
+            HeaderRange range = fetchHeaders(client, size, 0);
+            if (range.size == 0 || range.totalWork.compareTo(model.readChain(BlockChain::getTotalWork)) <= 0)
+                return null;
+            int peerSize = range.size;
+
+            // Step back until the peer's first header follows a block of this chain, or is a genesis block
+            int from = Math.min(size, peerSize - 1);
+            int step = 1;
+            while (true) {
+                range = fetchHeaders(client, from, ServerModel.MAX_HEADERS_PER_REQUEST);
+                if (range.headers.size() == 0)
+                    return null;
+                String parent = range.previousHash;
+                int parentIndex = from - 1;
+                if (from == 0 || model.readChain(chain -> chain.indexOf(parent)) == parentIndex)
+                    break;
+                from = Math.max(0, from - step);
+                step *= 2;
+            }
+
+            // The size is only what the peer claims, so at most one window of headers is allocated ahead
+            List<Block> fork = new ArrayList<>(Math.min(peerSize - from,
+                    HEADER_WINDOW * ServerModel.MAX_HEADERS_PER_REQUEST));
+            String previousHash = addHeaders(range, from, from == 0 ? "" : range.previousHash, fork);
+            fetching:
+            while (from + fork.size() < peerSize) {
+                List<Request> requests = new ArrayList<>(HEADER_WINDOW);
+                for (int next = from + fork.size(); next < peerSize && requests.size() < HEADER_WINDOW;
+                     next += ServerModel.MAX_HEADERS_PER_REQUEST)
+                    requests.add(Request.getHeaders(next, ServerModel.MAX_HEADERS_PER_REQUEST));
+                for (Response response : client.pipeline(requests)) {
+                    range = parseHeaders(response);
+                    // The peer's chain changed since the first request, keep the headers that still link
+                    if (range.headers.size() == 0 || !previousHash.equals(range.previousHash))
+                        break fetching;
+                    previousHash = addHeaders(range, from + fork.size(), previousHash, fork);
+                }
+            }
+
+            BigInteger forkWork = BigInteger.ZERO;
+            for (Block block : fork)
+                forkWork = forkWork.add(DifficultyTarget.workOf(block));
+            int start = from;
+            BigInteger ownWork = model.readChain(chain -> {
+                BigInteger work = BigInteger.ZERO;
+                for (int i = start; i < chain.getChainSize(); i++)
+                    work = work.add(DifficultyTarget.workOf(chain.getBlock(i)));
+                return work;
+            });
+            if (forkWork.compareTo(ownWork) <= 0)
+                return null;
+
+            fetchBodies(from, fork);
+            return model.switchToFork(from, fork);
+        }
+    }
+
+    public int getHeadersFetched() {
+        return headersFetched;
+    }
+
+    public int getBodiesFetched() {
+        return bodiesFetched.get();
+    }
+
+    /**
+     * Headers sent by a peer, with the size and work of its chain
+     */
+    private static class HeaderRange {
+        int size;
+        BigInteger totalWork;
+        String previousHash;    // Previous hash of the first header, null if there are none
+        JsonArray headers;
+    }
+
+    private static HeaderRange fetchHeaders(BlockChainClient client, int from, int count) throws IOException {
+        return parseHeaders(client.call(Request.getHeaders(from, count)));
+    }
+
+    private static HeaderRange parseHeaders(Response response) throws IOException {
+        if (!response.isOk())
+            throw new IOException(response.getText());
+        JsonObject message = new JsonParser().parse(response.getText()).getAsJsonObject();
+        HeaderRange range = new HeaderRange();
+        range.size = message.get("size").getAsInt();
+        range.totalWork = new BigInteger(message.get("totalWork").getAsString());
+        JsonElement previousHash = message.get("previousHash");
+        range.previousHash = previousHash == null || previousHash.isJsonNull() ? null : previousHash.getAsString();
+        range.headers = message.getAsJsonArray("headers");
+        return range;
+    }
+
+    /**
+     * Turns headers into blocks without their bodies, checking their proof of work
+     * @param range Headers to add
+     * @param index Index of the first header
+     * @param previousHash Hash of the block the first header follows
+     * @param fork Blocks the headers are added to
+     * @return the hash of the last header
+     * @throws IllegalArgumentException if a header does not meet its difficulty
+     */
+    private String addHeaders(HeaderRange range, int index, String previousHash, List<Block> fork) {
+        for (JsonElement element : range.headers) {
+            JsonArray header = element.getAsJsonArray();
+            Block block = new Block(index, Timestamp.valueOf(header.get(0).getAsString()), stringOf(header.get(5)),
+                    header.get(1).getAsInt());
+            block.setBits(header.get(2).getAsInt());
+            block.setNonce(new BigInteger(header.get(3).getAsString()));
+            String merkleRoot = stringOf(header.get(4));
+            if (merkleRoot != null) {
+                // Any list makes the root take the place of the data in the hash, the body replaces it
+                block.setTransactions(PENDING);
+                block.setMerkleRoot(merkleRoot);
+            }
+            block.setPreviousHash(previousHash);
+            previousHash = block.calculateHash();
+            if (!DifficultyTarget.isMet(block, previousHash))
+                throw new IllegalArgumentException("Header " + index + " does not meet its difficulty");
+            fork.add(block);
+            index++;
+        }
+        headersFetched += range.headers.size();
+        return previousHash;
+    }
+
+    private static String stringOf(JsonElement element) {
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    /**
+     * Fetches the transactions of every block of the fork holding several, in ranges shared by the connections
+     * @param from Index of the first block of the fork
+     * @param fork Blocks whose headers were checked
+     * @throws IOException if some bodies could not be fetched from any connection
+     */
+    private void fetchBodies(int from, List<Block> fork) throws IOException {
+        BlockingQueue<Integer> ranges = new LinkedBlockingQueue<>();
+        for (int start = 0; start < fork.size(); start += BODY_RANGE) {
+            for (int j = start; j < Math.min(start + BODY_RANGE, fork.size()); j++) {
+                if (fork.get(j).getTransactions() != null) {
+                    ranges.add(start);
+                    break;
+                }
+            }
+        }
+        if (ranges.isEmpty())
+            return;
+
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < connections; i++)
+            sources.add(peerAddress);
+        for (String other : otherPeers) {
+            if (!other.equals(peerAddress))
+                sources.add(other);
+        }
+        AtomicInteger remaining = new AtomicInteger(ranges.size());
+        ExecutorService pool = Executors.newFixedThreadPool(sources.size(), r -> {
+            Thread t = new Thread(r, "sync-bodies");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (String source : sources)
+                pool.execute(() -> fetchBodies(source, from, fork, ranges, remaining));
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching bodies", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (remaining.get() > 0)
+            throw new IOException("No connection could send the bodies of " + remaining.get() + " ranges");
+    }
+
+    /**
+     * Takes ranges of blocks until there are none left, and fetches their bodies over one connection
+     */
+    private void fetchBodies(String source, int from, List<Block> fork, BlockingQueue<Integer> ranges,
+                             AtomicInteger remaining) {
+        try (BlockChainClient client = PeerNetwork.connect(source)) {
+            while (remaining.get() > 0) {
+                // A range another connection gives back may still come, so wait a little for one
+                Integer start = ranges.poll(10, TimeUnit.MILLISECONDS);
+                if (start == null)
+                    continue;
+                try {
+                    fetchRange(client, from, fork, start);
+                    remaining.decrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    ranges.add(start);
+                    System.out.println("Bodies from " + source + " failed: " + e);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Bodies from " + source + " failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fetches the bodies of one range of blocks and gives them to their blocks once they all match their headers
+     * @param start Position of the first block of the range in the fork
+     * @throws IllegalArgumentException if a body does not match the Merkle root of its header
+     */
+    private void fetchRange(BlockChainClient client, int from, List<Block> fork, int start) throws IOException {
+        int count = Math.min(BODY_RANGE, fork.size() - start);
+        Response response = client.call(Request.getBodies(from + start, count));
+        if (!response.isOk())
+            throw new IOException(response.getText());
+        JsonArray bodies = new JsonParser().parse(response.getText()).getAsJsonObject().getAsJsonArray("bodies");
+        if (bodies.size() != count)
+            throw new IOException("Got " + bodies.size() + " bodies instead of " + count);
+
+        List<List<String>> transactions = new ArrayList<>(count);
+        for (int j = 0; j < count; j++) {
+            Block block = fork.get(start + j);
+            if (block.getTransactions() == null) {
+                transactions.add(null);
+                continue;
+            }
+            JsonElement body = bodies.get(j);
+            if (!body.isJsonArray())
+                throw new IllegalArgumentException("Block " + block.getIndex() + " has no body");
+            List<String> list = new ArrayList<>(body.getAsJsonArray().size());
+            for (JsonElement transaction : body.getAsJsonArray())
+                list.add(transaction.getAsString());
+            if (!MerkleTree.matches(list, block.getMerkleRoot()))
+                throw new IllegalArgumentException("Body of block " + block.getIndex()
+                        + " does not match its Merkle root");
+            transactions.add(list);
+        }
+        for (int j = 0; j < count; j++) {
+            if (transactions.get(j) != null) {
+                fork.get(start + j).setTransactions(transactions.get(j));
+                bodiesFetched.incrementAndGet();
+            }
+        }
+    }
+}
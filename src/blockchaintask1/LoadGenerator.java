@@ -0,0 +1,367 @@
+package blockchaintask1;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadGenerator measures the server end to end: it starts a {@link ServerModel} behind a
+ * {@link BlockChainServerTCP} on localhost, in this process, and drives it with simulated clients for a while.
+ * Every client sends a request, waits for its response and sends the next one, all of them through one
+ * {@link AsyncBlockChainClient} with a connection per client, so that the clients need no thread each.
+ * The requests follow a command mix over the menu choices 0 to 5, the blocks a difficulty mix and the
+ * transactions a size distribution. Every second it prints the chain size, the throughput and the latencies of
+ * ADD and VERIFY over that second, so that their growth with the chain shows. At the end it prints the throughput
+ * and latency percentiles of every command, after a warmup that is not counted.
+ * It exits with status 1 if -Dload.minTps or -Dload.maxAddP99Millis is set and not met, so that a build can
+ * reject a regression.
+ * Settings, all optional:
+ * -Dload.clients (16), -Dload.seconds (10), -Dload.warmupSeconds (2), -Dload.port (9400),
+ * -Dload.mix (STATUS:30,ADD:50,VERIFY:10,VIEW:5,CORRUPT:3,REPAIR:2), -Dload.difficulties (1:60,2:30,3:10),
+ * -Dload.txBytes (uniform:32:512, or fixed:N, or exponential:MEAN).
+ * The server reads its own settings as usual, -Dstore.dir for one. Its logging of every request is turned off,
+ * so that it is not measured along with the server, and the rest of standard output is silenced, the results
+ * being printed to the original one.
+ */
+public class LoadGenerator {
+    private static final long TIMEOUT_MILLIS = 120000;
+    private static final String USAGE = "Usage: java [-Dload.clients=N] [-Dload.seconds=N] [-Dload.warmupSeconds=N]"
+            + " [-Dload.port=N] [-Dload.mix=COMMAND:WEIGHT,...] [-Dload.difficulties=DIFFICULTY:WEIGHT,...]"
+            + " [-Dload.txBytes=uniform:MIN:MAX|fixed:N|exponential:MEAN] blockchaintask1.LoadGenerator";
+    private static final String DEFAULT_MIX = "STATUS:30,ADD:50,VERIFY:10,VIEW:5,CORRUPT:3,REPAIR:2";
+
+    private final Weighted<Command> mix;
+    private final Weighted<Integer> difficulties;
+    private final SizeDistribution txBytes;
+    private final ServerModel model;
+    private final AsyncBlockChainClient client;
+    private final ExecutorService dispatcher;
+    private final Map<Command, Stats> totals = new EnumMap<>(Command.class);
+    private final AtomicReference<Map<Command, Stats>> interval = new AtomicReference<>();
+    private volatile long measureFrom;
+    private volatile long end;
+
+    /**
+     * Counts of one command
+     */
+    private static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * Picks values at random, each in proportion to its weight
+     */
+    private static class Weighted<T> {
+        final List<T> values = new ArrayList<>();
+        final List<Integer> bounds = new ArrayList<>();   // Running sums of the weights
+        int total;
+
+        void add(T value, int weight) {
+            if (weight <= 0)
+                return;
+            total += weight;
+            values.add(value);
+            bounds.add(total);
+        }
+
+        T pick(Random random) {
+            int r = random.nextInt(total);
+            for (int i = 0; ; i++) {
+                if (r < bounds.get(i))
+                    return values.get(i);
+            }
+        }
+    }
+
+    /**
+     * Sizes of transactions: fixed:N, uniform:MIN:MAX or exponential:MEAN bytes
+     */
+    private static class SizeDistribution {
+        final String kind;
+        final int a;
+        final int b;
+
+        SizeDistribution(String spec) {
+            String[] parts = spec.split(":");
+            kind = parts[0];
+            a = Integer.parseInt(parts[1]);
+            b = parts.length > 2 ? Integer.parseInt(parts[2]) : a;
+            if (!kind.equals("fixed") && !kind.equals("uniform") && !kind.equals("exponential"))
+                throw new IllegalArgumentException("Unknown size distribution " + spec);
+            if (a < 1 || b < a)
+                throw new IllegalArgumentException("Transaction sizes must be at least 1, and MAX at least MIN: "
+                        + spec);
+        }
+
+        int next(Random random) {
+            if (kind.equals("fixed"))
+                return a;
+            if (kind.equals("uniform"))
+                return a + random.nextInt(b - a + 1);
+            return Math.max(1, (int) Math.round(-a * Math.log(1 - random.nextDouble())));
+        }
+    }
+
+    LoadGenerator(ServerModel model, AsyncBlockChainClient client, int clients, Weighted<Command> mix,
+                  Weighted<Integer> difficulties, SizeDistribution txBytes) {
+        this.model = model;
+        this.client = client;
+        this.mix = mix;
+        this.difficulties = difficulties;
+        this.txBytes = txBytes;
+        for (Command command : mix.values)
+            totals.put(command, new Stats());
+        interval.set(newStats());
+        // Only runs the callbacks that send the next requests, the responses are read by the client's threads
+        dispatcher = Executors.newFixedThreadPool(Math.min(clients, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "load-dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int clients = Integer.getInteger("load.clients", 16);
+        long seconds = Long.getLong("load.seconds", 10);
+        long warmupSeconds = Long.getLong("load.warmupSeconds", 2);
+        int port = Integer.getInteger("load.port", 9400);
+        Weighted<Command> mix = new Weighted<>();
+        Weighted<Integer> difficulties = new Weighted<>();
+        SizeDistribution txBytes;
+        try {
+            if (clients < 1)
+                throw new IllegalArgumentException("-Dload.clients must be at least 1");
+            // The rates are divided by the measured seconds
+            if (seconds < 1)
+                throw new IllegalArgumentException("-Dload.seconds must be at least 1");
+            if (warmupSeconds < 0)
+                throw new IllegalArgumentException("-Dload.warmupSeconds must not be negative");
+            for (String[] entry : pairs(System.getProperty("load.mix", DEFAULT_MIX))) {
+                Command command = Command.valueOf(entry[0]);
+                if (command.getChoice() > 5)
+                    throw new IllegalArgumentException(command + " is not one of the menu choices 0 to 5");
+                mix.add(command, Integer.parseInt(entry[1]));
+            }
+            for (String[] entry : pairs(System.getProperty("load.difficulties", "1:60,2:30,3:10")))
+                difficulties.add(Integer.parseInt(entry[0]), Integer.parseInt(entry[1]));
+            // A pick needs at least one positive weight
+            if (mix.total == 0)
+                throw new IllegalArgumentException("-Dload.mix needs a command with a positive weight");
+            if (difficulties.total == 0)
+                throw new IllegalArgumentException("-Dload.difficulties needs a difficulty with a positive weight");
+            txBytes = new SizeDistribution(System.getProperty("load.txBytes", "uniform:32:512"));
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        ServerModel model = ServerModel.start();
+        BlockChainServerTCP server = new BlockChainServerTCP(model, port);
+        server.setLogRequests(false);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "load-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        AsyncBlockChainClient client = new AsyncBlockChainClient("localhost", port, clients, TIMEOUT_MILLIS,
+                WireProtocol.FORMAT_BINARY);
+        LoadGenerator generator = new LoadGenerator(model, client, clients, mix, difficulties, txBytes);
+        boolean passed;
+        try {
+            passed = generator.run(out, clients, warmupSeconds, seconds);
+        } finally {
+            client.close();
+            server.close();
+            model.shutdown();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Runs the clients, printing a line every second and the totals at the end
+     * @return false if a threshold set with -Dload.minTps or -Dload.maxAddP99Millis was not met
+     */
+    boolean run(PrintStream out, int clients, long warmupSeconds, long seconds) throws InterruptedException {
+        out.printf(Locale.ROOT, "%d clients for %d s after a %d s warmup, mix %s%n", clients, seconds, warmupSeconds,
+                System.getProperty("load.mix", DEFAULT_MIX));
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> printInterval(out, start), 1, 1, TimeUnit.SECONDS);
+
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++)
+            next(done);
+        done.await();
+        reporter.shutdownNow();
+        dispatcher.shutdown();
+        return printTotals(out, seconds);
+    }
+
+    /**
+     * Sends the next request of one client, or counts the client down once the time is up
+     */
+    private void next(CountDownLatch done) {
+        long now = System.nanoTime();
+        if (now - end >= 0) {
+            done.countDown();
+            return;
+        }
+        Random random = ThreadLocalRandom.current();
+        Command command = mix.pick(random);
+        Request request = newRequest(command, random);
+        int bytes = command == Command.ADD ? request.getData().length() : 0;
+        long sent = System.nanoTime();
+        client.call(request).whenCompleteAsync((response, error) -> {
+            long nanos = System.nanoTime() - sent;
+            boolean failed = error != null || !response.isOk();
+            if (sent - measureFrom >= 0)
+                record(totals.get(command), nanos, failed, bytes);
+            record(interval.get().get(command), nanos, failed, bytes);
+            next(done);
+        }, dispatcher);
+    }
+
+    private static void record(Stats stats, long nanos, boolean failed, int bytes) {
+        if (failed) {
+            stats.errors.increment();
+            return;
+        }
+        stats.latency.record(nanos);
+        stats.bytes.add(bytes);
+    }
+
+    private Request newRequest(Command command, Random random) {
+        switch (command) {
+            case ADD: {
+                char[] data = new char[txBytes.next(random)];
+                for (int i = 0; i < data.length; i++)
+                    data[i] = (char) ('a' + random.nextInt(26));
+                return Request.add(difficulties.pick(random), new String(data));
+            }
+            case CORRUPT: {
+                int size = model.readChain(BlockChain::getChainSize);
+                return Request.corrupt(random.nextInt(size), "corrupted by the load generator");
+            }
+            case VERIFY:
+                return Request.verify();
+            case VIEW:
+                return Request.view();
+            case REPAIR:
+                return Request.repair();
+            default:
+                return Request.status();
+        }
+    }
+
+    private Map<Command, Stats> newStats() {
+        Map<Command, Stats> stats = new EnumMap<>(Command.class);
+        for (Command command : mix.values)
+            stats.put(command, new Stats());
+        return stats;
+    }
+
+    /**
+     * Prints the last second: chain size, requests and blocks added per second, and the ADD and VERIFY latencies
+     */
+    private void printInterval(PrintStream out, long start) {
+        Map<Command, Stats> last = interval.getAndSet(newStats());
+        long requests = 0;
+        for (Stats stats : last.values())
+            requests += stats.latency.getCount() + stats.errors.sum();
+        Stats add = last.get(Command.ADD);
+        Stats verify = last.get(Command.VERIFY);
+        out.printf(Locale.ROOT, "%4d s  %7d blocks  %7d req/s  %6d tx/s  add p50 %s p99 %s  verify p50 %s%n",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), model.readChain(BlockChain::getChainSize),
+                requests, add == null ? 0 : add.latency.getCount(), quantile(add, 0.5), quantile(add, 0.99),
+                quantile(verify, 0.5));
+    }
+
+    /**
+     * Prints the throughput and latencies of every command over the measured time
+     * @return false if a threshold was not met
+     */
+    private boolean printTotals(PrintStream out, long seconds) {
+        out.printf(Locale.ROOT, "%-8s %9s %7s %10s %10s %10s %10s %10s%n", "command", "count", "errors", "per s",
+                "p50 ms", "p90 ms", "p99 ms", "max ms");
+        for (Map.Entry<Command, Stats> entry : totals.entrySet()) {
+            Stats stats = entry.getValue();
+            LatencyHistogram latency = stats.latency;
+            out.printf(Locale.ROOT, "%-8s %9d %7d %10.1f %10s %10s %10s %10.3f%n", entry.getKey(), latency.getCount(),
+                    stats.errors.sum(), latency.getCount() / (double) seconds, quantile(stats, 0.5),
+                    quantile(stats, 0.9), quantile(stats, 0.99), latency.getMax() / 1e6);
+        }
+        Stats add = totals.get(Command.ADD);
+        double tps = add == null ? 0 : add.latency.getCount() / (double) seconds;
+        out.printf(Locale.ROOT, "Transactions accepted: %.1f per second, %.1f KB per second, chain of %d blocks%n",
+                tps, add == null ? 0 : add.bytes.sum() / 1024.0 / seconds, model.readChain(BlockChain::getChainSize));
+
+        boolean passed = true;
+        double minTps = Double.parseDouble(System.getProperty("load.minTps", "0"));
+        if (minTps > 0 && tps < minTps) {
+            out.printf(Locale.ROOT, "FAILED: %.1f transactions per second, below -Dload.minTps=%.1f%n", tps, minTps);
+            passed = false;
+        }
+        double maxP99 = Double.parseDouble(System.getProperty("load.maxAddP99Millis", "0"));
+        if (maxP99 > 0 && add != null && add.latency.getValueAtQuantile(0.99) / 1e6 > maxP99) {
+            out.printf(Locale.ROOT, "FAILED: ADD p99 of %s ms, above -Dload.maxAddP99Millis=%.1f%n",
+                    quantile(add, 0.99), maxP99);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private static String quantile(Stats stats, double quantile) {
+        if (stats == null || stats.latency.getCount() == 0)
+            return "-";
+        return String.format(Locale.ROOT, "%.3f", stats.latency.getValueAtQuantile(quantile) / 1e6);
+    }
+
+    /**
+     * Splits "a:1,b:2" into its name and weight pairs
+     */
+    private static List<String[]> pairs(String spec) {
+        List<String[]> pairs = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String[] pair = entry.trim().split(":");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Expected name:weight, got " + entry);
+            pairs.add(pair);
+        }
+        return pairs;
+    }
+}
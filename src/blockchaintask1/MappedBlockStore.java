@@ -0,0 +1,477 @@
+package blockchaintask1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MappedBlockStore keeps a chain in memory-mapped files, so that blocks do not live on the heap.
+ * Every block has a fixed size header in headers.dat, at an offset computed from its index:
+ * 1. long, int - timestamp milliseconds and nanoseconds
+ * 2. int - difficulty
+ * 3. long - nonce
+ * 4. 32 bytes each - previous hash and Merkle root
+ * 5. long, int - offset and length of the block's data or transactions in payloads.dat
+ * 6. byte - flags telling which of the values above are present
+ * The payload of a block that has a compact target starts with it, as an int.
+ * The headers file is mapped in chunks, and the header fields are read straight from the mapping, see
+ * {@link #getDifficulty(int)}, {@link #getNonce(int)} and {@link #getPreviousHash(int)}.
+ * A {@link Block} object is only created when a block is asked for, and is not kept, so the heap stays flat
+ * however long the chain grows. The number of blocks and the chain hash are kept in the mapped file meta.dat.
+ * A block changed in place gets its header rewritten and, if needed, its payload appended again.
+ * Unlike the {@link BlockStore} log there are no checksums, and the operating system writes the mapped pages back
+ * in any order: a crash between two fsyncs can leave a damaged block, or a count covering a block that was never
+ * written, which chain verification reports and repair fixes. With the ALWAYS policy every write is forced before
+ * it returns, so only a crash in the middle of a write can.
+ * It is the mapped kind of {@link ChainStore}.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/nio/MappedByteBuffer.html
+ */
+public class MappedBlockStore implements ChainStore {
+    private static final int HEADER_SIZE = 104;
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int NANOS_OFFSET = 8;
+    private static final int DIFFICULTY_OFFSET = 12;
+    private static final int NONCE_OFFSET = 16;
+    private static final int PREVIOUS_HASH_OFFSET = 24;
+    private static final int MERKLE_ROOT_OFFSET = 56;
+    private static final int PAYLOAD_OFFSET_OFFSET = 88;
+    private static final int PAYLOAD_LENGTH_OFFSET = 96;
+    private static final int FLAGS_OFFSET = 100;
+
+    private static final byte HAS_PREVIOUS_HASH = 1;
+    private static final byte HAS_MERKLE_ROOT = 2;
+    private static final byte HAS_TRANSACTIONS = 4;
+    private static final byte HAS_NONCE = 8;
+    private static final byte HAS_DATA = 16;
+    private static final byte HAS_BITS = 32;
+
+    private static final int HASH_BYTES = 32;
+    private static final int HEADERS_PER_CHUNK = 1 << 18;
+
+    // meta.dat: magic, block count, payload end, chain hash flag and bytes
+    private static final int META_MAGIC = 0x424b4d50;
+    private static final int META_COUNT_OFFSET = 4;
+    private static final int META_PAYLOAD_END_OFFSET = 8;
+    private static final int META_HASH_FLAG_OFFSET = 16;
+    private static final int META_HASH_OFFSET = 17;
+    private static final int META_SIZE = META_HASH_OFFSET + HASH_BYTES;
+
+    private final BlockStore.FsyncPolicy fsyncPolicy;
+    private final FileChannel headersFile;
+    private final FileChannel payloadsFile;
+    private final FileChannel metaFile;
+    private final MappedByteBuffer meta;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final BitSet dirtyChunks = new BitSet();    // Chunks written since the last flush
+    private final ScheduledExecutorService flusher;
+    private ByteBuffer payloadBuffer = ByteBuffer.allocate(8 * 1024);
+    private volatile int count;
+    private long payloadEnd;
+    private volatile boolean unsynced;
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it if needed
+     * @param directory Directory of the headers, payloads and meta files
+     * @param fsyncPolicy When written blocks are forced to disk
+     * @param fsyncIntervalMillis How often the PERIODIC policy forces the files
+     */
+    public MappedBlockStore(Path directory, BlockStore.FsyncPolicy fsyncPolicy, long fsyncIntervalMillis)
+            throws IOException {
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+        headersFile = FileChannel.open(directory.resolve("headers.dat"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        payloadsFile = FileChannel.open(directory.resolve("payloads.dat"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        metaFile = FileChannel.open(directory.resolve("meta.dat"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = metaFile.size() == 0;
+        meta = metaFile.map(FileChannel.MapMode.READ_WRITE, 0, META_SIZE);
+        if (created) {
+            meta.putInt(0, META_MAGIC);
+            meta.force();
+        } else if (meta.getInt(0) != META_MAGIC) {
+            throw new IOException("Not a mapped block store: " + directory.resolve("meta.dat"));
+        }
+        count = meta.getInt(META_COUNT_OFFSET);
+        payloadEnd = meta.getLong(META_PAYLOAD_END_OFFSET);
+        // Only the chunks holding blocks are mapped now, the next ones when the chain reaches them
+        for (int i = 0; i < count; i += HEADERS_PER_CHUNK)
+            mapChunk();
+
+        if (fsyncPolicy == BlockStore.FsyncPolicy.PERIODIC) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mapped-store-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flushInBackground, fsyncIntervalMillis, fsyncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Opens a store configured from -Dstore.fsync (PERIODIC by default) and -Dstore.fsyncIntervalMillis (10)
+     * @param directory Directory of the store
+     */
+    public static MappedBlockStore fromSystemProperties(String directory) throws IOException {
+        return new MappedBlockStore(Paths.get(directory),
+                BlockStore.FsyncPolicy.valueOf(System.getProperty("store.fsync", BlockStore.FsyncPolicy.PERIODIC.name())),
+                Long.getLong("store.fsyncIntervalMillis", 10));
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String getChainHash() {
+        if (meta.get(META_HASH_FLAG_OFFSET) == 0)
+            return "";
+        return getHash(meta, META_HASH_OFFSET);
+    }
+
+    @Override
+    public synchronized void append(Block block, String chainHash) {
+        checkOpen();
+        int index = count;
+        if (index == chunks.size() * HEADERS_PER_CHUNK)
+            mapChunk();
+        writeBlock(index, block, false);
+        putChainHash(chainHash);
+        // The count goes last, so that readers of this store only see the block once it is completely written.
+        // It gives no order on disk: the pages of the mapping are written back in any order, so after a crash the
+        // count may cover a block whose header did not reach the disk, see the class comment
+        count = index + 1;
+        meta.putInt(META_COUNT_OFFSET, count);
+        written();
+    }
+
+    @Override
+    public synchronized void update(Block block) {
+        checkOpen();
+        writeBlock(block.getIndex(), block, true);
+        written();
+    }
+
+    /**
+     * Drops the last blocks. Their payloads stay in payloads.dat, unused, and their headers are overwritten by the
+     * blocks appended next
+     */
+    @Override
+    public synchronized void truncate(int size, String chainHash) {
+        checkOpen();
+        putChainHash(chainHash);
+        count = size;
+        meta.putInt(META_COUNT_OFFSET, count);
+        written();
+    }
+
+    @Override
+    public synchronized void setChainHash(String chainHash) {
+        checkOpen();
+        putChainHash(chainHash);
+        written();
+    }
+
+    /**
+     * Creates a Block from the mapped header and the payload of a block. The Block is not kept by the store,
+     * so changing it has no effect until it is passed to {@link #update(Block)}
+     */
+    @Override
+    public Block read(int i) {
+        ByteBuffer chunk = chunkOf(i);
+        int header = headerOffset(i);
+        byte flags = chunk.get(header + FLAGS_OFFSET);
+        Timestamp timestamp = new Timestamp(chunk.getLong(header + TIMESTAMP_OFFSET));
+        timestamp.setNanos(chunk.getInt(header + NANOS_OFFSET));
+
+        ByteBuffer payload = readPayload(chunk.getLong(header + PAYLOAD_OFFSET_OFFSET),
+                chunk.getInt(header + PAYLOAD_LENGTH_OFFSET));
+        String data = null;
+        List<String> transactions = null;
+        int bits = (flags & HAS_BITS) != 0 ? payload.getInt() : 0;
+        if ((flags & HAS_TRANSACTIONS) != 0) {
+            int n = payload.getInt();
+            transactions = new ArrayList<>(n);
+            for (int t = 0; t < n; t++)
+                transactions.add(BlockCodec.getString(payload));
+        } else if ((flags & HAS_DATA) != 0) {
+            data = StandardCharsets.UTF_8.decode(payload).toString();
+        }
+
+        Block block = new Block(i, timestamp, data, chunk.getInt(header + DIFFICULTY_OFFSET));
+        block.setTransactions(transactions);
+        block.setBits(bits);
+        if ((flags & HAS_NONCE) != 0)
+            block.setNonce(BigInteger.valueOf(chunk.getLong(header + NONCE_OFFSET)));
+        block.setPreviousHash((flags & HAS_PREVIOUS_HASH) != 0 ? getHash(chunk, header + PREVIOUS_HASH_OFFSET) : "");
+        if ((flags & HAS_MERKLE_ROOT) != 0)
+            block.setMerkleRoot(getHash(chunk, header + MERKLE_ROOT_OFFSET));
+        return block;
+    }
+
+    /**
+     * Reads the difficulty of a block straight from its mapped header, without creating a Block
+     */
+    public int getDifficulty(int i) {
+        return chunkOf(i).getInt(headerOffset(i) + DIFFICULTY_OFFSET);
+    }
+
+    /**
+     * Reads the nonce of a block straight from its mapped header, without creating a Block
+     */
+    public long getNonce(int i) {
+        return chunkOf(i).getLong(headerOffset(i) + NONCE_OFFSET);
+    }
+
+    /**
+     * Reads the previous hash of a block straight from its mapped header, without creating a Block
+     */
+    public String getPreviousHash(int i) {
+        ByteBuffer chunk = chunkOf(i);
+        int header = headerOffset(i);
+        if ((chunk.get(header + FLAGS_OFFSET) & HAS_PREVIOUS_HASH) == 0)
+            return "";
+        return getHash(chunk, header + PREVIOUS_HASH_OFFSET);
+    }
+
+    /**
+     * Forces the mapped files to disk and closes them
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        if (flusher != null)
+            flusher.shutdownNow();
+        unsynced = true;
+        try {
+            force();
+        } finally {
+            closed = true;
+            headersFile.close();
+            payloadsFile.close();
+            metaFile.close();
+        }
+    }
+
+    /**
+     * Writes the header of a block and, when its data or transactions changed, a new payload
+     */
+    private void writeBlock(int index, Block block, boolean existing) {
+        ByteBuffer chunk = chunkOf(index);
+        dirtyChunks.set(index / HEADERS_PER_CHUNK);
+        int header = headerOffset(index);
+        byte flags = 0;
+
+        if (block.getNonce() != null) {
+            if (block.getNonce().bitLength() > 63)
+                throw new IllegalArgumentException("Nonce of block " + index + " does not fit in a long");
+            chunk.putLong(header + NONCE_OFFSET, block.getNonce().longValue());
+            flags |= HAS_NONCE;
+        }
+        if (!block.getPreviousHash().isEmpty()) {
+            putHash(chunk, header + PREVIOUS_HASH_OFFSET, block.getPreviousHash());
+            flags |= HAS_PREVIOUS_HASH;
+        }
+        if (block.getMerkleRoot() != null) {
+            putHash(chunk, header + MERKLE_ROOT_OFFSET, block.getMerkleRoot());
+            flags |= HAS_MERKLE_ROOT;
+        }
+        if (block.getTransactions() != null)
+            flags |= HAS_TRANSACTIONS;
+        else if (block.getData() != null)
+            flags |= HAS_DATA;
+        if (block.getBits() != 0)
+            flags |= HAS_BITS;
+
+        encodePayload(block);
+        long payloadOffset = payloadEnd;
+        int payloadLength = payloadBuffer.remaining();
+        if (existing && samePayload(chunk.getLong(header + PAYLOAD_OFFSET_OFFSET),
+                chunk.getInt(header + PAYLOAD_LENGTH_OFFSET))) {
+            // Repairs mostly change the header only, the old payload is kept
+            payloadOffset = chunk.getLong(header + PAYLOAD_OFFSET_OFFSET);
+        } else {
+            try {
+                while (payloadBuffer.hasRemaining())
+                    payloadsFile.write(payloadBuffer, payloadOffset + payloadBuffer.position());
+                payloadEnd += payloadLength;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write the payload of block " + index, e);
+            }
+        }
+
+        chunk.putLong(header + TIMESTAMP_OFFSET, block.getTimestamp().getTime());
+        chunk.putInt(header + NANOS_OFFSET, block.getTimestamp().getNanos());
+        chunk.putInt(header + DIFFICULTY_OFFSET, block.getDifficulty());
+        chunk.putLong(header + PAYLOAD_OFFSET_OFFSET, payloadOffset);
+        chunk.putInt(header + PAYLOAD_LENGTH_OFFSET, payloadLength);
+        chunk.put(header + FLAGS_OFFSET, flags);
+        meta.putLong(META_PAYLOAD_END_OFFSET, payloadEnd);
+    }
+
+    /**
+     * Puts the target if there is one, then the data, or the count and the transactions, of a block into the
+     * payload buffer, ready to be written
+     */
+    private void encodePayload(Block block) {
+        while (true) {
+            try {
+                payloadBuffer.clear();
+                if (block.getBits() != 0)
+                    payloadBuffer.putInt(block.getBits());
+                if (block.getTransactions() != null) {
+                    payloadBuffer.putInt(block.getTransactions().size());
+                    for (String transaction : block.getTransactions())
+                        BlockCodec.putString(payloadBuffer, transaction);
+                } else if (block.getData() != null) {
+                    payloadBuffer.put(block.getData().getBytes(StandardCharsets.UTF_8));
+                }
+                break;
+            } catch (BufferOverflowException e) {
+                payloadBuffer = ByteBuffer.allocate(payloadBuffer.capacity() * 2);
+            }
+        }
+        payloadBuffer.flip();
+    }
+
+    /**
+     * @return true if the stored payload is the same as the one in the payload buffer
+     */
+    private boolean samePayload(long offset, int length) {
+        return length == payloadBuffer.remaining() && readPayload(offset, length).equals(payloadBuffer);
+    }
+
+    private ByteBuffer readPayload(long offset, int length) {
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        try {
+            while (payload.hasRemaining()) {
+                if (payloadsFile.read(payload, offset + payload.position()) < 0)
+                    throw new IOException("Payload of " + length + " bytes at " + offset + " is past the end of the file");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        payload.flip();
+        return payload;
+    }
+
+    private void putChainHash(String chainHash) {
+        if (chainHash.isEmpty()) {
+            meta.put(META_HASH_FLAG_OFFSET, (byte) 0);
+        } else {
+            putHash(meta, META_HASH_OFFSET, chainHash);
+            meta.put(META_HASH_FLAG_OFFSET, (byte) 1);
+        }
+    }
+
+    /**
+     * Maps the next chunk of headers, which grows the headers file
+     */
+    private void mapChunk() {
+        long chunkBytes = (long) HEADERS_PER_CHUNK * HEADER_SIZE;
+        try {
+            chunks.add(headersFile.map(FileChannel.MapMode.READ_WRITE, chunks.size() * chunkBytes, chunkBytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map block headers", e);
+        }
+    }
+
+    private ByteBuffer chunkOf(int i) {
+        return chunks.get(i / HEADERS_PER_CHUNK);
+    }
+
+    private static int headerOffset(int i) {
+        return (i % HEADERS_PER_CHUNK) * HEADER_SIZE;
+    }
+
+    /**
+     * Stores a hex SHA-256 hash as its 32 bytes
+     */
+    private static void putHash(ByteBuffer buffer, int offset, String hash) {
+        byte[] bytes = Utils.convertHexadecimalToBytes(hash);
+        // Only hashes that read back as the same String can be stored as bytes
+        if (bytes == null || bytes.length != HASH_BYTES || !Utils.convertByteToHexadecimal(bytes).equals(hash))
+            throw new IllegalArgumentException("Not an upper case SHA-256 hash: " + hash);
+        buffer.put(offset, bytes);
+    }
+
+    private static String getHash(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[HASH_BYTES];
+        buffer.get(offset, bytes);
+        return Utils.convertByteToHexadecimal(bytes);
+    }
+
+    private void written() {
+        unsynced = true;
+        if (fsyncPolicy == BlockStore.FsyncPolicy.ALWAYS)
+            flush();
+    }
+
+    /**
+     * Forces the files to disk, run after every write by the ALWAYS policy
+     * @throws UncheckedIOException if they could not be forced, the write is then not durable
+     */
+    private void flush() {
+        try {
+            force();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to force the block store to disk", e);
+        }
+    }
+
+    /**
+     * Forces the files to disk, run by the PERIODIC flusher. A failure is retried at the next run
+     */
+    private void flushInBackground() {
+        try {
+            force();
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forces the mapped headers, the payloads and the meta data to disk if anything was written since the last time.
+     * What was written is only marked synced once everything is forced, so that a failure is retried
+     */
+    private synchronized void force() throws IOException {
+        if (!unsynced || closed)
+            return;
+        payloadsFile.force(false);
+        for (int i = dirtyChunks.nextSetBit(0); i >= 0; i = dirtyChunks.nextSetBit(i + 1))
+            chunks.get(i).force();
+        dirtyChunks.clear();
+        meta.force();
+        unsynced = false;
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Block store is closed");
+    }
+}
@@ -0,0 +1,226 @@
+package blockchaintask1;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * This class holds transactions that were accepted from clients but are not on the chain yet.
+ * It is bounded: when it is full new transactions are rejected instead of piling up in memory.
+ * Every accepted transaction gets an id, which a client can use to ask whether it has been confirmed,
+ * and in which block. The {@link BlockAssembler} drains the mempool into blocks.
+ * When a fork from another node replaces blocks, the transactions they held go back to pending, ahead of the
+ * others, see {@link #blocksReplaced}. A transaction whose block was replaced is therefore never reported confirmed.
+ * All methods are thread safe.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/BlockingQueue.html
+ */
+public class Mempool {
+    public static final int PENDING = -1;
+    public static final int UNKNOWN = -2;
+    public static final int FAILED = -3;
+
+    /**
+     * A transaction waiting in the mempool
+     */
+    public static class PendingTransaction {
+        private final long id;
+        private final String data;
+
+        PendingTransaction(long id, String data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getData() {
+            return data;
+        }
+    }
+
+    // Unbounded so that the transactions of replaced blocks always fit, submissions are bounded by waiting
+    private final LinkedBlockingDeque<PendingTransaction> queue = new LinkedBlockingDeque<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final int capacity;
+    private final AtomicLong nextId = new AtomicLong(1);
+    // Block index of every tracked transaction, PENDING until it is confirmed
+    private final Map<Long, Integer> blockIndexes = new ConcurrentHashMap<>();
+    // Confirmed and failed transactions, oldest first, so that the oldest ones can be forgotten
+    private final ConcurrentLinkedQueue<PendingTransaction> confirmed = new ConcurrentLinkedQueue<>();
+    private final int maxConfirmedTracked;
+
+    /**
+     * @param capacity Maximum number of pending transactions
+     * @param maxConfirmedTracked Number of confirmed transactions whose block is remembered
+     */
+    public Mempool(int capacity, int maxConfirmedTracked) {
+        this.capacity = capacity;
+        this.maxConfirmedTracked = maxConfirmedTracked;
+    }
+
+    /**
+     * Accepts a transaction without waiting for it to be mined
+     * @param data Transaction details
+     * @return the id of the transaction, or -1 if the mempool is full
+     */
+    public long submit(String data) {
+        if (waiting.incrementAndGet() > capacity) {
+            waiting.decrementAndGet();
+            return -1;
+        }
+        long id = nextId.getAndIncrement();
+        blockIndexes.put(id, PENDING);
+        queue.offerLast(new PendingTransaction(id, data));
+        return id;
+    }
+
+    /**
+     * Waits for at least one transaction, then keeps collecting until the block is full or the wait is over.
+     * @param maxTransactions Most transactions to return
+     * @param maxWaitMillis How long to keep collecting after the first transaction arrived
+     * @return between 1 and maxTransactions transactions, oldest first
+     */
+    public List<PendingTransaction> drain(int maxTransactions, long maxWaitMillis) throws InterruptedException {
+        List<PendingTransaction> batch = new ArrayList<>();
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (batch.size() < maxTransactions) {
+            // Take whatever is already waiting before sleeping on the queue
+            queue.drainTo(batch, maxTransactions - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxTransactions || remaining <= 0)
+                break;
+            PendingTransaction next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+        }
+        waiting.addAndGet(-batch.size());
+        return batch;
+    }
+
+    /**
+     * Records that the given transactions are on the chain and wakes up clients waiting for them
+     * @param transactions Transactions of the new block
+     * @param blockIndex Index of the new block
+     */
+    public void confirm(List<PendingTransaction> transactions, int blockIndex) {
+        settle(transactions, blockIndex);
+    }
+
+    /**
+     * Records that the given transactions could not be mined, and wakes up clients waiting for them
+     * @param transactions Transactions of the block that was given up
+     */
+    public void fail(List<PendingTransaction> transactions) {
+        settle(transactions, FAILED);
+    }
+
+    private void settle(List<PendingTransaction> transactions, int blockIndex) {
+        for (PendingTransaction transaction : transactions) {
+            blockIndexes.put(transaction.getId(), blockIndex);
+            confirmed.add(transaction);
+        }
+        // Forget the oldest confirmations
+        while (confirmed.size() > maxConfirmedTracked) {
+            PendingTransaction oldest = confirmed.poll();
+            if (oldest != null)
+                blockIndexes.remove(oldest.getId());
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Puts transactions back in front of the waiting ones, in their order, to be mined into another block
+     * @param transactions Transactions that are not on the chain
+     */
+    public void requeue(List<PendingTransaction> transactions) {
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            PendingTransaction transaction = transactions.get(i);
+            blockIndexes.put(transaction.getId(), PENDING);
+            waiting.incrementAndGet();
+            queue.offerFirst(transaction);
+        }
+    }
+
+    /**
+     * Called once a fork replaced the blocks of the chain from an index on. The transactions confirmed in those
+     * blocks are confirmed again in the block of the new chain holding them, or go back to pending otherwise.
+     * Must not run at the same time as {@link #confirm}, the caller holds the lock on the chain.
+     * @param fromIndex Index of the first block replaced
+     * @param blockIndexOf Finds the block of the new chain holding a transaction, -1 if none does
+     * @return number of transactions put back to pending
+     */
+    public int blocksReplaced(int fromIndex, ToIntFunction<String> blockIndexOf) {
+        List<PendingTransaction> orphaned = new ArrayList<>();
+        for (Iterator<PendingTransaction> it = confirmed.iterator(); it.hasNext(); ) {
+            PendingTransaction transaction = it.next();
+            Integer blockIndex = blockIndexes.get(transaction.getId());
+            if (blockIndex == null || blockIndex < fromIndex)
+                continue;
+            int newIndex = blockIndexOf.applyAsInt(transaction.getData());
+            if (newIndex >= 0) {
+                blockIndexes.put(transaction.getId(), newIndex);
+            } else {
+                it.remove();
+                orphaned.add(transaction);
+            }
+        }
+        orphaned.sort(Comparator.comparingLong(PendingTransaction::getId));
+        requeue(orphaned);
+        return orphaned.size();
+    }
+
+    /**
+     * @param id Transaction id returned by {@link #submit(String)}
+     * @return the index of the block holding the transaction, PENDING, FAILED if its block could not be mined,
+     * or UNKNOWN if the id is not tracked
+     */
+    public int getBlockIndex(long id) {
+        Integer blockIndex = blockIndexes.get(id);
+        return blockIndex == null ? UNKNOWN : blockIndex;
+    }
+
+    /**
+     * Waits until the transaction is confirmed or the timeout passes
+     * @param id Transaction id returned by {@link #submit(String)}
+     * @param timeoutMillis Longest time to wait
+     * @return the same values as {@link #getBlockIndex(long)}
+     */
+    public int awaitConfirmation(long id, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this) {
+            int blockIndex = getBlockIndex(id);
+            while (blockIndex == PENDING) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0)
+                    break;
+                wait(remaining);
+                blockIndex = getBlockIndex(id);
+            }
+            return blockIndex;
+        }
+    }
+
+    /**
+     * @return number of transactions waiting to be mined
+     */
+    public int size() {
+        return queue.size();
+    }
+}
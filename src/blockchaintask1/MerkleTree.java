@@ -0,0 +1,95 @@
+package blockchaintask1;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class computes the Merkle root of a list of transactions.
+ * Each leaf is the SHA-256 hash of the byte 0x00 followed by a transaction. Each parent is the SHA-256 hash of the
+ * byte 0x01 followed by the digests of its two children. The different prefixes keep a transaction from passing for
+ * an interior node, so no single transaction has the root of two others.
+ * When a level has an odd number of nodes, the last one is paired with itself. Then [a, b, c] and [a, b, c, c] would
+ * have the same root, so a list whose level ends with two equal hashes has no root: it could be swapped for the
+ * shorter one without changing the header.
+ * The root commits to every transaction, so a block header only needs the root instead of the transactions,
+ * and the cost of hashing the header no longer depends on how many transactions the block holds.
+ *
+ * References:
+ * 1. https://en.wikipedia.org/wiki/Merkle_tree
+ * 2. https://developer.bitcoin.org/reference/block_chain.html#merkle-trees
+ * 3. https://nvd.nist.gov/vuln/detail/CVE-2012-2459
+ * 4. https://datatracker.ietf.org/doc/html/rfc6962#section-2.1
+ */
+public class MerkleTree {
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Computes the Merkle root of the given transactions
+     * @param transactions Transactions in block order
+     * @return hex Merkle root. An empty list has the hash of the empty String as its root
+     * @throws IllegalArgumentException if a level of the tree ends with two equal hashes
+     */
+    public static String root(List<String> transactions) {
+        String root = compute(transactions);
+        if (root == null)
+            throw new IllegalArgumentException("The last two hashes of a level of the Merkle tree are equal");
+        return root;
+    }
+
+    /**
+     * @param transactions Transactions in block order
+     * @param root Merkle root they must have
+     * @return true if the transactions have that root. A list with no root matches none
+     */
+    public static boolean matches(List<String> transactions, String root) {
+        String computed = compute(transactions);
+        return computed != null && computed.equals(root);
+    }
+
+    /**
+     * @param transactions Transactions in block order
+     * @return true if the transactions have a Merkle root, that is no level of their tree ends with two equal hashes
+     */
+    public static boolean hasRoot(List<String> transactions) {
+        return compute(transactions) != null;
+    }
+
+    /**
+     * @return hex Merkle root, or null if a level ends with two equal hashes
+     */
+    private static String compute(List<String> transactions) {
+        if (transactions.isEmpty())
+            return Utils.getSHA256Hash("");
+
+        MessageDigest digest = Utils.getSHA256Digest();
+        List<byte[]> level = new ArrayList<>(transactions.size());
+        for (String transaction : transactions) {
+            digest.update(LEAF_PREFIX);
+            level.add(digest.digest(transaction.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        while (level.size() > 1) {
+            int size = level.size();
+            if (Arrays.equals(level.get(size - 1), level.get(size - 2)))
+                return null;
+            List<byte[]> parents = new ArrayList<>((size + 1) / 2);
+            for (int i = 0; i < size; i += 2) {
+                byte[] left = level.get(i);
+                // An odd node out is paired with itself
+                byte[] right = i + 1 < size ? level.get(i + 1) : left;
+                digest.update(NODE_PREFIX);
+                digest.update(left);
+                parents.add(digest.digest(right));
+            }
+            level = parents;
+        }
+        return Utils.convertByteToHexadecimal(level.get(0));
+    }
+}
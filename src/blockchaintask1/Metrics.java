@@ -0,0 +1,269 @@
+package blockchaintask1;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics collects live counters and latency histograms of the node, for every thread of the process.
+ * 1. Mining - hashes tried, counted a chunk at a time while a search runs, blocks mined, time spent mining, the
+ *    hash rate of the searches in progress and the time to mine a block for each difficulty, reported by the
+ *    {@link Miner} and its {@link MiningTask}s
+ * 2. Verify and repair durations, reported by the {@link ServerModel}
+ * 3. Request latency and failures for each {@link Command}, reported by the {@link BlockChainServerTCP}
+ * 4. Gauges read when the metrics are asked for, such as active connections, chain size and mempool size
+ * Counters are {@link LongAdder}s and durations go to {@link LatencyHistogram}s, so recording is cheap and never
+ * blocks. The metrics can be read as text with the METRICS command, or in the Prometheus text format from
+ * {@link MetricsHttpServer}.
+ * Like the {@link Miner} configuration, the metrics are static, as there is one node per process.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/atomic/LongAdder.html
+ * 2. https://prometheus.io/docs/instrumenting/exposition_formats/
+ */
+public final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final LongAdder hashes = new LongAdder();
+    private static final LongAdder blocksMined = new LongAdder();
+    private static final LongAdder miningNanos = new LongAdder();
+    private static final Set<MiningTask> searches = ConcurrentHashMap.newKeySet();   // Searches in progress
+    private static final Map<Integer, LatencyHistogram> miningTimeByDifficulty = new ConcurrentSkipListMap<>();
+
+    private static final LatencyHistogram verifyTime = new LatencyHistogram();
+    private static final LatencyHistogram repairTime = new LatencyHistogram();
+
+    private static final Map<Command, LatencyHistogram> requestLatency = new EnumMap<>(Command.class);
+    private static final Map<Command, LongAdder> requestErrors = new EnumMap<>(Command.class);
+
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    static {
+        // Filled once, so that the maps are only read afterwards and need no locking
+        for (Command command : Command.values()) {
+            requestLatency.put(command, new LatencyHistogram());
+            requestErrors.put(command, new LongAdder());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * A value read when the metrics are reported
+     */
+    private static class Gauge {
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Counts nonces hashed by a search, found or not, as they are hashed
+     */
+    static void recordHashes(long nonces) {
+        hashes.add(nonces);
+    }
+
+    /**
+     * Follows a search while it runs, so that its rate is part of the hash rate
+     */
+    static void searchStarted(MiningTask task) {
+        searches.add(task);
+    }
+
+    /**
+     * Stops following a search, counting the time it ran, whether it found a nonce or not
+     */
+    static void searchEnded(MiningTask task, long nanos) {
+        searches.remove(task);
+        miningNanos.add(nanos);
+    }
+
+    /**
+     * Counts one proof of work found
+     * @param difficulty Difficulty of the block
+     * @param nanos Time it took
+     */
+    public static void recordMining(int difficulty, long nanos) {
+        blocksMined.increment();
+        miningTimeByDifficulty.computeIfAbsent(difficulty, d -> new LatencyHistogram()).record(nanos);
+    }
+
+    public static void recordVerify(long nanos) {
+        verifyTime.record(nanos);
+    }
+
+    public static void recordRepair(long nanos) {
+        repairTime.record(nanos);
+    }
+
+    /**
+     * Counts one request answered by the server
+     * @param command Command of the request
+     * @param nanos Time from reading the request to writing its response
+     * @param failed true if the request was answered with an error
+     */
+    public static void recordRequest(Command command, long nanos, boolean failed) {
+        requestLatency.get(command).record(nanos);
+        if (failed)
+            requestErrors.get(command).increment();
+    }
+
+    /**
+     * Adds a gauge, or replaces the gauge of the same name
+     * @param name Prometheus name of the gauge
+     * @param help One line description
+     * @param value Reads the current value
+     */
+    public static void registerGauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * @return total number of nonces hashed by the miner
+     */
+    public static long getHashes() {
+        return hashes.sum();
+    }
+
+    /**
+     * @return hashes per second of the searches in progress, 0 when nothing is being mined
+     */
+    public static long getHashRate() {
+        double rate = 0;
+        for (MiningTask task : searches)
+            rate += task.getHashesPerSecond();
+        return (long) rate;
+    }
+
+    /**
+     * @return hashes per second over the time spent mining
+     */
+    public static long getAverageHashRate() {
+        long nanos = miningNanos.sum();
+        return nanos == 0 ? 0 : (long) (hashes.sum() * 1e9 / nanos);
+    }
+
+    /**
+     * @return the metrics as readable text, for the METRICS command
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Hash rate: %d hashes per second now, %d on average while mining%n",
+                getHashRate(), getAverageHashRate()));
+        sb.append(String.format("Mined %d blocks, hashed %d nonces in %d milliseconds of searching%n", blocksMined.sum(),
+                hashes.sum(), miningNanos.sum() / 1000000));
+        for (Map.Entry<Integer, LatencyHistogram> entry : miningTimeByDifficulty.entrySet())
+            appendHistogram(sb, "Time to mine at difficulty " + entry.getKey(), entry.getValue());
+        appendHistogram(sb, "Verify time", verifyTime);
+        appendHistogram(sb, "Repair time", repairTime);
+        for (Command command : Command.values()) {
+            LatencyHistogram histogram = requestLatency.get(command);
+            if (histogram.getCount() > 0) {
+                appendHistogram(sb, command + " latency", histogram);
+                long errors = requestErrors.get(command).sum();
+                if (errors > 0)
+                    sb.append(String.format("%s errors: %d%n", command, errors));
+            }
+        }
+        for (Map.Entry<String, Gauge> entry : new ConcurrentSkipListMap<>(gauges).entrySet())
+            sb.append(String.format("%s: %d%n", entry.getValue().help, entry.getValue().value.getAsLong()));
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0)
+            return;
+        sb.append(String.format(Locale.ROOT, "%s: count %d, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                name, histogram.getCount(), millis(histogram.getValueAtQuantile(0.5)),
+                millis(histogram.getValueAtQuantile(0.9)), millis(histogram.getValueAtQuantile(0.99)),
+                millis(histogram.getMax())));
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        appendCounter(sb, "blockchain_hashes_total", "Nonces hashed while mining", hashes.sum());
+        appendCounter(sb, "blockchain_blocks_mined_total", "Proofs of work found", blocksMined.sum());
+        sb.append("# HELP blockchain_mining_seconds_total Time spent mining\n");
+        sb.append("# TYPE blockchain_mining_seconds_total counter\n");
+        sb.append("blockchain_mining_seconds_total ").append(seconds(miningNanos.sum())).append('\n');
+        appendGauge(sb, "blockchain_hash_rate", "Hashes per second of the searches in progress", getHashRate());
+
+        sb.append("# HELP blockchain_mining_duration_seconds Time to mine a block, by difficulty\n");
+        sb.append("# TYPE blockchain_mining_duration_seconds summary\n");
+        for (Map.Entry<Integer, LatencyHistogram> entry : miningTimeByDifficulty.entrySet())
+            appendSummary(sb, "blockchain_mining_duration_seconds", "difficulty=\"" + entry.getKey() + "\"",
+                    entry.getValue());
+
+        sb.append("# HELP blockchain_verify_duration_seconds Time to verify the chain\n");
+        sb.append("# TYPE blockchain_verify_duration_seconds summary\n");
+        appendSummary(sb, "blockchain_verify_duration_seconds", null, verifyTime);
+        sb.append("# HELP blockchain_repair_duration_seconds Time to repair the chain\n");
+        sb.append("# TYPE blockchain_repair_duration_seconds summary\n");
+        appendSummary(sb, "blockchain_repair_duration_seconds", null, repairTime);
+
+        sb.append("# HELP blockchain_request_duration_seconds Time to answer a request, by command\n");
+        sb.append("# TYPE blockchain_request_duration_seconds summary\n");
+        for (Command command : Command.values())
+            appendSummary(sb, "blockchain_request_duration_seconds", "command=\"" + command + "\"",
+                    requestLatency.get(command));
+        sb.append("# HELP blockchain_request_errors_total Requests answered with an error, by command\n");
+        sb.append("# TYPE blockchain_request_errors_total counter\n");
+        for (Command command : Command.values()) {
+            sb.append("blockchain_request_errors_total{command=\"").append(command).append("\"} ")
+                    .append(requestErrors.get(command).sum()).append('\n');
+        }
+
+        for (Map.Entry<String, Gauge> entry : new ConcurrentSkipListMap<>(gauges).entrySet())
+            appendGauge(sb, entry.getKey(), entry.getValue().help, entry.getValue().value.getAsLong());
+        return sb.toString();
+    }
+
+    private static void appendCounter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendGauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes the quantiles, sum and count of a histogram, in seconds
+     * @param labels Labels of the series without the braces, or null
+     */
+    private static void appendSummary(StringBuilder sb, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            sb.append(name).append('{').append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+        }
+        String series = labels == null ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(series).append(' ').append(seconds(histogram.getSum())).append('\n');
+        sb.append(name).append("_count").append(series).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,284 @@
+package blockchaintask1;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is the proof of work engine used by {@link Block#proofOfWork()}.
+ * It searches for a nonce that gives a block a hash with the required number of leading hex zeroes.
+ * It works in one of two modes:
+ * 1. SINGLE_THREADED - nonces are tried one after the other on the calling thread, starting from 0.
+ * 2. PARALLEL - the nonce space is split into chunks that a pool of worker threads claim one at a time.
+ * As soon as one worker finds a good hash every other worker stops.
+ * Each attempt is hashed through a {@link HeaderHasher}, which works on bytes and a primitive long nonce.
+ * The hex form of the hash is only built for the winning nonce.
+ * The hasher either hashes the whole header per attempt, or resumes from the cached SHA-256 state of the part of
+ * the header before the nonce (the midstate). AUTO uses the midstate only for blocks with long data.
+ * A search can be run as a {@link MiningTask}, which the workers check between chunks of nonces, to stop when it
+ * is cancelled or times out, and which they tell how many nonces they tried, so that its rate can be followed.
+ * The searches of new blocks share one pool of workers, and a search holds every worker until it stops. Repairs
+ * search on a pool of their own, so that re-mining a damaged block does not queue behind a new block.
+ * The nonces tried go to {@link Metrics} a chunk at a time, so the hash rate is live and the work of searches
+ * that are cancelled or time out is counted too. Every proof of work found is reported with the time it took.
+ * The mode, the number of workers and the hashing can be changed at runtime (or through the "miner.mode",
+ * "miner.threads" and "miner.hashing" system properties) so that their effect can be measured.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/ExecutorService.html
+ * 2. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/atomic/AtomicReference.html
+ */
+public class Miner {
+
+    public enum Mode {
+        SINGLE_THREADED,
+        PARALLEL
+    }
+
+    public enum Hashing {
+        FULL_HEADER,
+        MIDSTATE,
+        AUTO
+    }
+
+    // Number of consecutive nonces a worker claims at a time
+    private static final long CHUNK_SIZE = 4096;
+
+    private static Mode mode = Mode.valueOf(System.getProperty("miner.mode", Mode.PARALLEL.name()));
+    private static int threadCount = Integer.getInteger("miner.threads", Runtime.getRuntime().availableProcessors());
+    private static Hashing hashing = Hashing.valueOf(System.getProperty("miner.hashing", Hashing.AUTO.name()));
+    private static ExecutorService pool;        // Worker threads, created on the first parallel search
+    private static ExecutorService repairPool;  // Worker threads of the repairs, created on the first one
+
+    private Miner() {
+    }
+
+    public static synchronized Mode getMode() {
+        return mode;
+    }
+
+    public static synchronized void setMode(Mode mode) {
+        Miner.mode = mode;
+    }
+
+    public static synchronized Hashing getHashing() {
+        return hashing;
+    }
+
+    public static synchronized void setHashing(Hashing hashing) {
+        Miner.hashing = hashing;
+    }
+
+    public static synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Changes the number of worker threads used by the parallel search.
+     * The current pools are shut down and new ones are created on the next searches.
+     * @param threadCount number of worker threads, at least 1
+     */
+    public static synchronized void setThreadCount(int threadCount) {
+        if (threadCount < 1)
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        Miner.threadCount = threadCount;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        if (repairPool != null) {
+            repairPool.shutdown();
+            repairPool = null;
+        }
+    }
+
+    /**
+     * Finds a nonce for the given block using the current mode.
+     * The block itself is not modified, the caller decides what to do with the result.
+     * @param block Block whose proof of work needs to be computed
+     * @return the winning nonce and the hash of the block with that nonce
+     */
+    public static MiningResult mine(Block block) {
+        return new MiningTask(block).run();
+    }
+
+    /**
+     * Finds a nonce for the given block using the current mode, unless the search is cancelled first.
+     * The block itself is not modified, the caller decides what to do with the result.
+     * @param block Block whose proof of work needs to be computed
+     * @param cancelled Flag that stops the search when it is set, or null if the search cannot be cancelled
+     * @return the winning nonce and the hash of the block with that nonce, or null if the search was cancelled
+     */
+    public static MiningResult mine(Block block, AtomicBoolean cancelled) {
+        return new MiningTask(block, cancelled, 0).run();
+    }
+
+    /**
+     * Like {@link #mine(Block, AtomicBoolean)}, on the workers of the repairs, for a {@link ChainRepairer}
+     */
+    public static MiningResult mineForRepair(Block block, AtomicBoolean cancelled) {
+        return new MiningTask(block, cancelled, 0, true).run();
+    }
+
+    /**
+     * Runs the search of a task using the current mode, see {@link MiningTask#run()}
+     * @param task Task holding the block, which is not modified
+     * @return the winning nonce and the hash of the block with that nonce, or null if the task was stopped first
+     */
+    static MiningResult mine(MiningTask task) {
+        Block block = task.getBlock();
+        int difficulty = block.getDifficulty();
+        // Expanded once, so that checking an attempt against a fractional difficulty only compares bytes
+        byte[] target = block.getBits() == 0 ? null : DifficultyTarget.toBytes(block.getBits());
+
+        Mode currentMode;
+        Hashing currentHashing;
+        int workers;
+        synchronized (Miner.class) {
+            currentMode = mode;
+            currentHashing = hashing;
+            workers = threadCount;
+        }
+        long startTime = System.nanoTime();
+        Metrics.searchStarted(task);
+        MiningResult result;
+        try {
+            if (currentMode == Mode.SINGLE_THREADED || workers == 1)
+                result = mineSingleThreaded(block, difficulty, target, currentHashing, task);
+            else
+                result = mineInParallel(block, difficulty, target, currentHashing, workers, task);
+        } finally {
+            Metrics.searchEnded(task, System.nanoTime() - startTime);
+        }
+        if (result != null)
+            Metrics.recordMining(difficulty, System.nanoTime() - startTime);
+        return result;
+    }
+
+    /**
+     * Tries nonces 0, 1, 2... on the calling thread, exactly like the original proof of work loop
+     */
+    private static MiningResult mineSingleThreaded(Block block, int difficulty, byte[] target, Hashing hashing,
+                                                   MiningTask task) {
+        HeaderHasher hasher = new HeaderHasher(block, hashing);
+        long nonce = 0;
+        while (true) {
+            byte[] hash = hasher.hash(nonce);
+            if (meetsDifficulty(hash, difficulty, target)) {
+                task.tried(nonce % CHUNK_SIZE + 1);
+                return new MiningResult(BigInteger.valueOf(nonce), Utils.convertByteToHexadecimal(hash), nonce + 1);
+            }
+            nonce++;
+            // The task is only told once per chunk, it costs nothing next to the hashing
+            if (nonce % CHUNK_SIZE == 0) {
+                task.tried(CHUNK_SIZE);
+                if (task.shouldStop())
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Starts one search task per worker and waits for all of them to stop
+     */
+    private static MiningResult mineInParallel(Block block, int difficulty, byte[] target, Hashing hashing,
+                                               int workers, MiningTask task) {
+        AtomicLong nextChunk = new AtomicLong();
+        AtomicReference<MiningResult> winner = new AtomicReference<>();
+        ExecutorService executor = task.isRepair() ? getRepairPool() : getPool();
+
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            futures.add(executor.submit(() -> searchChunks(block, difficulty, target, hashing, nextChunk, winner,
+                    task)));
+        }
+
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            // Stop the workers before giving up
+            for (Future<?> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Proof of work was interrupted", e);
+        } catch (ExecutionException e) {
+            for (Future<?> future : futures)
+                future.cancel(true);
+            throw new IllegalStateException("Proof of work failed", e.getCause());
+        }
+        MiningResult result = winner.get();
+        if (result == null)
+            return null;
+        // Every worker has stopped, so the count covers all of them
+        return new MiningResult(result.getNonce(), result.getHash(), task.getNoncesTried());
+    }
+
+    /**
+     * @param target expanded target of a block with a fractional difficulty, null to check the leading zeroes
+     */
+    private static boolean meetsDifficulty(byte[] hash, int difficulty, byte[] target) {
+        return target == null ? Utils.hasLeadingZeroes(hash, difficulty) : DifficultyTarget.isMet(target, hash);
+    }
+
+    /**
+     * Claims chunks of nonces until this worker or another one finds a good hash, or the task is stopped.
+     * The hasher is created here so that it uses the worker thread's own MessageDigest.
+     */
+    private static void searchChunks(Block block, int difficulty, byte[] target, Hashing hashing,
+                                     AtomicLong nextChunk, AtomicReference<MiningResult> winner, MiningTask task) {
+        HeaderHasher hasher = new HeaderHasher(block, hashing);
+        long tried = 0;
+        try {
+            while (winner.get() == null && !task.shouldStop() && !Thread.currentThread().isInterrupted()) {
+                long start = nextChunk.getAndIncrement() * CHUNK_SIZE;
+                long end = start + CHUNK_SIZE;
+                // A cancellation is seen within the chunk, reading the flag costs nothing next to a hash
+                for (long nonce = start; nonce < end && winner.get() == null && !task.isCancelled(); nonce++) {
+                    byte[] hash = hasher.hash(nonce);
+                    tried++;
+                    if (meetsDifficulty(hash, difficulty, target)) {
+                        winner.compareAndSet(null, new MiningResult(BigInteger.valueOf(nonce),
+                                Utils.convertByteToHexadecimal(hash), 0));
+                        return;
+                    }
+                }
+                // Reported a chunk at a time, so that the rate can be followed while the search runs
+                task.tried(tried);
+                tried = 0;
+            }
+        } finally {
+            task.tried(tried);
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null)
+            pool = newPool("miner-");
+        return pool;
+    }
+
+    private static synchronized ExecutorService getRepairPool() {
+        if (repairPool == null)
+            repairPool = newPool("repair-miner-");
+        return repairPool;
+    }
+
+    private static ExecutorService newPool(String namePrefix) {
+        AtomicInteger workerId = new AtomicInteger();
+        return Executors.newFixedThreadPool(threadCount, r -> {
+            Thread t = new Thread(r, namePrefix + workerId.getAndIncrement());
+            // Miner threads must not keep the JVM alive
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
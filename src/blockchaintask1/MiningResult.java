@@ -0,0 +1,36 @@
+package blockchaintask1;
+
+import java.math.BigInteger;
+
+/**
+ * This class holds the outcome of a proof of work search done by {@link Miner}.
+ * It holds the winning nonce, the hex hash the block has with that nonce, and how many nonces were tried.
+ */
+public class MiningResult {
+    private final BigInteger nonce;
+    private final String hash;
+    private final long attempts;
+
+    /**
+     * @param nonce Nonce that gives the block a hash of the proper difficulty
+     * @param hash Hex representation of the block's hash for the given nonce
+     * @param attempts Number of nonces hashed by the search, by every worker together
+     */
+    MiningResult(BigInteger nonce, String hash, long attempts) {
+        this.nonce = nonce;
+        this.hash = hash;
+        this.attempts = attempts;
+    }
+
+    public BigInteger getNonce() {
+        return nonce;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,161 @@
+package blockchaintask1;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is one proof of work search of the {@link Miner}, which other threads can stop and follow.
+ * The search stops when the task is cancelled or when its timeout passes. Every worker checks between two chunks
+ * of nonces, so it stops within a few milliseconds. Meanwhile the task counts the nonces tried, a chunk at a
+ * time, so the rate of the search can be read while it runs.
+ * {@link ServerModel} cancels its mining task when a block from another node takes the place of the one it was
+ * mining, and starts again on the new most recent block. A task that is abandoned is not started again.
+ */
+public class MiningTask {
+    private final Block block;
+    private final AtomicBoolean cancelled;
+    private final long timeoutNanos;
+    private final boolean repair;
+    private final AtomicLong noncesTried = new AtomicLong();
+
+    // Written by the mining thread, read by any thread following the search
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile boolean expired;
+    private volatile boolean abandoned;
+
+    /**
+     * @param block Block to mine, which the search does not modify
+     */
+    public MiningTask(Block block) {
+        this(block, new AtomicBoolean(), 0);
+    }
+
+    /**
+     * @param block Block to mine, which the search does not modify
+     * @param cancelled Flag that stops the search when it is set, which the caller may share with other work,
+     * or null for a flag of its own
+     * @param timeoutMillis Longest the search may run, 0 for no limit
+     */
+    public MiningTask(Block block, AtomicBoolean cancelled, long timeoutMillis) {
+        this(block, cancelled, timeoutMillis, false);
+    }
+
+    /**
+     * @param repair true to search on the {@link Miner}'s repair workers, so that a repair does not wait for the
+     * search of a new block to end
+     */
+    MiningTask(Block block, AtomicBoolean cancelled, long timeoutMillis, boolean repair) {
+        this.block = block;
+        this.cancelled = cancelled != null ? cancelled : new AtomicBoolean();
+        this.timeoutNanos = timeoutMillis * 1000000;
+        this.repair = repair;
+    }
+
+    /**
+     * Searches for the nonce on the calling thread, with the workers of the {@link Miner} if it mines in parallel
+     * @return the winning nonce and hash, or null if the task was cancelled or timed out first
+     */
+    public MiningResult run() {
+        startTime = System.nanoTime();
+        try {
+            return Miner.mine(this);
+        } finally {
+            endTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Asks the search to stop as soon as it can. The thread running {@link #run()} gets null
+     */
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    /**
+     * Cancels the search and tells the thread running it not to start it again on another block
+     */
+    public void abandon() {
+        abandoned = true;
+        cancel();
+    }
+
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return true if the search stopped because it ran for longer than its timeout
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    boolean isRepair() {
+        return repair;
+    }
+
+    /**
+     * @return number of nonces hashed so far, by every worker together
+     */
+    public long getNoncesTried() {
+        return noncesTried.get();
+    }
+
+    /**
+     * @return nanoseconds the search has run for, or ran for once it is over
+     */
+    public long getElapsedNanos() {
+        long start = startTime;
+        if (start == 0)
+            return 0;
+        long end = endTime;
+        return (end != 0 ? end : System.nanoTime()) - start;
+    }
+
+    /**
+     * @return nonces tried per second since the search started
+     */
+    public double getHashesPerSecond() {
+        long elapsed = getElapsedNanos();
+        return elapsed == 0 ? 0 : getNoncesTried() * 1e9 / elapsed;
+    }
+
+    /**
+     * Called by the workers between two chunks of nonces
+     * @return true if the search must stop
+     */
+    boolean shouldStop() {
+        if (cancelled.get())
+            return true;
+        if (timeoutNanos > 0 && System.nanoTime() - startTime >= timeoutNanos) {
+            expired = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds nonces a worker hashed to the count, and to the hashes of the {@link Metrics}
+     */
+    void tried(long nonces) {
+        noncesTried.addAndGet(nonces);
+        Metrics.recordHashes(nonces);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Mining block %d, %d nonces tried in %d milliseconds, %.0f hashes per second%s",
+                block.getIndex(), getNoncesTried(), getElapsedNanos() / 1000000, getHashesPerSecond(),
+                isExpired() ? ", timed out" : isAbandoned() ? ", abandoned" : isCancelled() ? ", cancelled" : "");
+    }
+}
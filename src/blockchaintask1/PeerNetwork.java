@@ -0,0 +1,216 @@
+package blockchaintask1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PeerNetwork connects a node, a {@link ServerModel} behind a {@link BlockChainServerTCP}, to the other nodes
+ * of a network, so that they all hold the same chain.
+ * 1. Gossip - every block a node mines is announced to its peers with an ANNOUNCE request. A peer that adds the
+ *    block announces it to its own peers in turn, and a peer that already has it stops there.
+ * 2. Catch up - a node that is announced a block it has no parent for syncs with the sender: it finds the last
+ *    block both chains share by stepping back, doubling the step each time, then fetches the headers after it and
+ *    the transactions of their blocks in parallel, see {@link HeaderSync}.
+ * 3. Fork resolution - the chain switches to the fetched fork only if the fork holds more work, the expected
+ *    number of hashes of its blocks given their difficulty, see {@link BlockChain#switchTo}. On the same work a
+ *    node keeps the chain it has.
+ * A node also syncs with every peer when it starts and then every -Dpeers.syncMillis (5000 by default, 0 to
+ * never), so a node that was down or missed an announcement catches up.
+ * Announcements are sent by one thread per peer, over a connection kept open between them, and syncs by one
+ * thread for the node, so neither holds up the requests of the node's clients.
+ * Peers are configured with -Dpeers=host:port,host:port, see {@link BlockChainServerTCP#main}.
+ *
+ * References:
+ * 1. https://en.wikipedia.org/wiki/Gossip_protocol
+ * 2. https://developer.bitcoin.org/devguide/p2p_network.html
+ */
+public class PeerNetwork implements Closeable {
+    private final ServerModel model;
+    private final String address;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final ScheduledExecutorService syncExecutor;
+    private final Set<String> pendingSyncs = ConcurrentHashMap.newKeySet();
+    private final int syncConnections = Integer.getInteger("sync.connections", 4);
+
+    /**
+     * One other node, and the connection announcements are sent to it over
+     */
+    private static class Peer {
+        final String address;
+        final ExecutorService sender;
+        BlockChainClient client;    // Only used by the sender thread, null until connected
+
+        Peer(String address) {
+            this.address = address;
+            sender = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "peer-" + address);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Joins a node to its peers. Nothing is sent until {@link #start(long)}
+     * @param model Model of this node, which announces the blocks it mines through this network
+     * @param address Address of this node, host:port, which peers connect to when they sync with it
+     * @param peerAddresses Addresses of the other nodes, host:port
+     */
+    public PeerNetwork(ServerModel model, String address, List<String> peerAddresses) {
+        this.model = model;
+        this.address = address;
+        for (String peerAddress : peerAddresses) {
+            if (!peerAddress.equals(address))
+                peers.put(peerAddress, new Peer(peerAddress));
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "peer-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        model.setPeers(this);
+    }
+
+    /**
+     * Joins a node to the peers listed in -Dpeers, and starts syncing every -Dpeers.syncMillis
+     * @param model Model of this node
+     * @param address Address of this node, host:port
+     * @return the network, or null if -Dpeers is not set
+     */
+    public static PeerNetwork fromSystemProperties(ServerModel model, String address) {
+        String list = System.getProperty("peers");
+        if (list == null || list.trim().isEmpty())
+            return null;
+        List<String> peerAddresses = new ArrayList<>();
+        for (String peer : Arrays.asList(list.split(",")))
+            peerAddresses.add(peer.trim());
+        PeerNetwork network = new PeerNetwork(model, address, peerAddresses);
+        network.start(Long.getLong("peers.syncMillis", 5000));
+        return network;
+    }
+
+    /**
+     * Syncs with every peer now, and then periodically
+     * @param syncMillis Time between two syncs with every peer, 0 to only sync when a block is missing
+     */
+    public void start(long syncMillis) {
+        if (syncMillis > 0)
+            syncExecutor.scheduleWithFixedDelay(this::syncAll, 0, syncMillis, TimeUnit.MILLISECONDS);
+        else
+            syncAll();
+    }
+
+    /**
+     * @return the address of this node
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Sends a block to every peer but one, in the background
+     * @param block JSON of the block, written by {@link BlockJson#PEER_GSON}
+     * @param except Address of the peer the block came from, null to send it to every peer
+     */
+    public void announce(String block, String except) {
+        Request request = Request.announce(block, address);
+        for (Peer peer : peers.values()) {
+            if (!peer.address.equals(except))
+                peer.sender.execute(() -> send(peer, request));
+        }
+    }
+
+    /**
+     * Syncs with a peer in the background, unless a sync with it is already waiting
+     * @param peerAddress Address of the peer, host:port
+     */
+    public void sync(String peerAddress) {
+        if (pendingSyncs.add(peerAddress))
+            syncExecutor.execute(() -> {
+                pendingSyncs.remove(peerAddress);
+                syncWith(peerAddress);
+            });
+    }
+
+    private void syncAll() {
+        for (String peerAddress : peers.keySet())
+            sync(peerAddress);
+    }
+
+    /**
+     * Sends one announcement, connecting to the peer if needed. A peer that cannot be reached misses it, and
+     * catches up by syncing later
+     */
+    private void send(Peer peer, Request request) {
+        try {
+            if (peer.client == null)
+                peer.client = connect(peer.address);
+            peer.client.call(request);
+        } catch (IOException e) {
+            System.out.println("Peer " + peer.address + " unreachable: " + e.getMessage());
+            closeClient(peer);
+        }
+    }
+
+    /**
+     * Fetches the blocks of a peer this node does not have, headers first, and switches to them if they hold more
+     * work
+     */
+    private void syncWith(String peerAddress) {
+        try {
+            List<String> others = new ArrayList<>(peers.keySet());
+            others.remove(peerAddress);
+            HeaderSync sync = new HeaderSync(model, peerAddress, others, syncConnections);
+            String tip = sync.run();
+            if (tip != null) {
+                System.out.printf("Switched to the chain of %s, %d headers and %d bodies fetched%n", peerAddress,
+                        sync.getHeadersFetched(), sync.getBodiesFetched());
+                announce(tip, peerAddress);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Sync with " + peerAddress + " failed: " + e);
+        }
+    }
+
+    static BlockChainClient connect(String peerAddress) throws IOException {
+        int colon = peerAddress.lastIndexOf(':');
+        if (colon < 0)
+            throw new IOException("Peer address " + peerAddress + " is not host:port");
+        return new BlockChainClient(peerAddress.substring(0, colon),
+                Integer.parseInt(peerAddress.substring(colon + 1)));
+    }
+
+    private static void closeClient(Peer peer) {
+        if (peer.client == null)
+            return;
+        try {
+            peer.client.close();
+        } catch (IOException e) {
+            // The connection is dropped anyway
+        }
+        peer.client = null;
+    }
+
+    /**
+     * Stops syncing and closes the connections to the peers
+     */
+    @Override
+    public void close() {
+        syncExecutor.shutdownNow();
+        for (Peer peer : peers.values()) {
+            peer.sender.execute(() -> closeClient(peer));
+            peer.sender.shutdown();
+        }
+    }
+}
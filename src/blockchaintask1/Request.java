@@ -0,0 +1,393 @@
+package blockchaintask1;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds one client request: the chosen command and the values it needs.
+ * Adding a transaction needs a difficulty and the transaction data, corrupting the chain needs a block id and
+ * the new data for that block. Adding a batch needs a difficulty and a list of transactions.
+ * Submitting a transaction to the mempool needs its data, asking for its status needs the transaction id and
+ * how long to wait for the confirmation. Viewing a range of blocks needs the index of the first block and how many
+ * blocks to send, and so does getting blocks for another node. Getting a block or a transaction by hash needs the
+ * hash. Announcing a block needs the block and the address of the node that sends it. The other commands need
+ * nothing else.
+ * A request can be converted from and to the JSON message the client used to send, see {@link #toJson()}.
+ * Its correlation id is sent back with the response, so that a client that pipelines requests can match them up.
+ */
+public class Request {
+    private final int choice;
+    private int correlationId;
+    private int difficulty;
+    private String data;
+    private int id;
+    private String newData;
+    private List<String> transactions;
+    private long transactionId;
+    private long waitMillis;
+    private int from;
+    private int count;
+    private String hash;
+    private String peer;
+
+    /**
+     * @param choice Menu choice of the command. Unknown choices are kept so that the server can reject them
+     */
+    public Request(int choice) {
+        this.choice = choice;
+    }
+
+    public static Request status() {
+        return new Request(Command.STATUS.getChoice());
+    }
+
+    public static Request add(int difficulty, String data) {
+        Request request = new Request(Command.ADD.getChoice());
+        request.difficulty = difficulty;
+        request.data = data;
+        return request;
+    }
+
+    public static Request verify() {
+        return new Request(Command.VERIFY.getChoice());
+    }
+
+    /**
+     * Verifies every block again, instead of only the blocks changed or added since the last verification
+     */
+    public static Request verifyFull() {
+        return new Request(Command.VERIFY_FULL.getChoice());
+    }
+
+    public static Request view() {
+        return new Request(Command.VIEW.getChoice());
+    }
+
+    public static Request corrupt(int id, String newData) {
+        Request request = new Request(Command.CORRUPT.getChoice());
+        request.id = id;
+        request.newData = newData;
+        return request;
+    }
+
+    public static Request repair() {
+        return new Request(Command.REPAIR.getChoice());
+    }
+
+    /**
+     * Streams a range of blocks, see {@link Command#VIEW_RANGE}
+     * @param from Index of the first block
+     * @param count Number of blocks to send, the range stops early at the end of the chain
+     */
+    public static Request viewRange(int from, int count) {
+        Request request = new Request(Command.VIEW_RANGE.getChoice());
+        request.from = from;
+        request.count = count;
+        return request;
+    }
+
+    /**
+     * Gets a block by its hash, see {@link BlockChain#indexOf(String)}
+     * @param hash Hex hash of the block
+     */
+    public static Request getBlock(String hash) {
+        Request request = new Request(Command.GET_BLOCK.getChoice());
+        request.hash = hash;
+        return request;
+    }
+
+    /**
+     * Gets a transaction and the block holding it, see {@link BlockChain#indexOfTransaction(String)}
+     * @param hash Hex SHA-256 hash of the transaction
+     */
+    public static Request getTransaction(String hash) {
+        Request request = new Request(Command.GET_TRANSACTION.getChoice());
+        request.hash = hash;
+        return request;
+    }
+
+    /**
+     * Gets blocks in the form nodes exchange, along with the size and work of the chain, see {@link PeerNetwork}
+     * @param from Index of the first block
+     * @param count Most blocks to send, the server may send fewer
+     */
+    public static Request getBlocks(int from, int count) {
+        Request request = new Request(Command.GET_BLOCKS.getChoice());
+        request.from = from;
+        request.count = count;
+        return request;
+    }
+
+    /**
+     * Gets the compact headers of blocks, everything their hash covers but their transactions, see {@link HeaderSync}
+     * @param from Index of the first block
+     * @param count Most headers to send, the server may send fewer
+     */
+    public static Request getHeaders(int from, int count) {
+        Request request = new Request(Command.GET_HEADERS.getChoice());
+        request.from = from;
+        request.count = count;
+        return request;
+    }
+
+    /**
+     * Gets the transactions of blocks whose headers were fetched with {@link #getHeaders(int, int)}
+     * @param from Index of the first block
+     * @param count Most blocks to send the transactions of, the server may send fewer
+     */
+    public static Request getBodies(int from, int count) {
+        Request request = new Request(Command.GET_BODIES.getChoice());
+        request.from = from;
+        request.count = count;
+        return request;
+    }
+
+    /**
+     * Tells another node about a newly mined block, see {@link PeerNetwork}
+     * @param block JSON of the block, written by {@link BlockJson#PEER_GSON}
+     * @param peer Address of the sending node, host:port, which the receiver syncs with if it misses blocks
+     */
+    public static Request announce(String block, String peer) {
+        Request request = new Request(Command.ANNOUNCE.getChoice());
+        request.data = block;
+        request.peer = peer;
+        return request;
+    }
+
+    /**
+     * Asks for the live metrics of the server, see {@link Metrics}
+     */
+    public static Request metrics() {
+        return new Request(Command.METRICS.getChoice());
+    }
+
+    /**
+     * Asks how far the repair running on the server has got
+     */
+    public static Request repairStatus() {
+        return new Request(Command.REPAIR_STATUS.getChoice());
+    }
+
+    /**
+     * Stops the repair running on the server, keeping the blocks it already repaired
+     */
+    public static Request repairCancel() {
+        return new Request(Command.REPAIR_CANCEL.getChoice());
+    }
+
+    /**
+     * Gives up the block the server is mining, whoever asked for it
+     */
+    public static Request miningCancel() {
+        return new Request(Command.MINING_CANCEL.getChoice());
+    }
+
+    public static Request addBatch(int difficulty, List<String> transactions) {
+        Request request = new Request(Command.ADD_BATCH.getChoice());
+        request.difficulty = difficulty;
+        request.transactions = transactions;
+        return request;
+    }
+
+    public static Request submit(String data) {
+        Request request = new Request(Command.SUBMIT.getChoice());
+        request.data = data;
+        return request;
+    }
+
+    /**
+     * @param transactionId Id returned when the transaction was submitted
+     * @param waitMillis How long the server may wait for the transaction to be confirmed, 0 to answer right away
+     */
+    public static Request transactionStatus(long transactionId, long waitMillis) {
+        Request request = new Request(Command.TX_STATUS.getChoice());
+        request.transactionId = transactionId;
+        request.waitMillis = waitMillis;
+        return request;
+    }
+
+    /**
+     * Reads a request from the JSON message format
+     * @param message JSON object with a "choice" and the values of that choice
+     * @return the request described by the message
+     */
+    public static Request fromJson(JsonObject message) {
+        Request request = new Request(message.get("choice").getAsInt());
+        if (message.has("difficulty"))
+            request.difficulty = message.get("difficulty").getAsInt();
+        if (message.has("data"))
+            request.data = message.get("data").getAsString();
+        if (message.has("id"))
+            request.id = message.get("id").getAsInt();
+        if (message.has("newData"))
+            request.newData = message.get("newData").getAsString();
+        if (message.has("transactions")) {
+            request.transactions = new ArrayList<>();
+            for (JsonElement transaction : message.get("transactions").getAsJsonArray())
+                request.transactions.add(transaction.getAsString());
+        }
+        if (message.has("transactionId"))
+            request.transactionId = message.get("transactionId").getAsLong();
+        if (message.has("waitMillis"))
+            request.waitMillis = message.get("waitMillis").getAsLong();
+        if (message.has("from"))
+            request.from = message.get("from").getAsInt();
+        if (message.has("count"))
+            request.count = message.get("count").getAsInt();
+        if (message.has("hash"))
+            request.hash = message.get("hash").getAsString();
+        if (message.has("peer"))
+            request.peer = message.get("peer").getAsString();
+        return request;
+    }
+
+    /**
+     * Writes the request in the JSON message format. Only the values used by the command are included
+     * @return JSON object with a "choice" and the values of that choice
+     */
+    public JsonObject toJson() {
+        JsonObject message = new JsonObject();
+        message.addProperty("choice", choice);
+        Command command = getCommand();
+        if (command == Command.ADD) {
+            message.addProperty("difficulty", difficulty);
+            message.addProperty("data", data);
+        } else if (command == Command.CORRUPT) {
+            message.addProperty("id", id);
+            message.addProperty("newData", newData);
+        } else if (command == Command.ADD_BATCH) {
+            message.addProperty("difficulty", difficulty);
+            JsonArray array = new JsonArray();
+            for (String transaction : transactions)
+                array.add(new JsonPrimitive(transaction));
+            message.add("transactions", array);
+        } else if (command == Command.SUBMIT) {
+            message.addProperty("data", data);
+        } else if (command == Command.TX_STATUS) {
+            message.addProperty("transactionId", transactionId);
+            message.addProperty("waitMillis", waitMillis);
+        } else if (command == Command.VIEW_RANGE || command == Command.GET_BLOCKS
+                || command == Command.GET_HEADERS || command == Command.GET_BODIES) {
+            message.addProperty("from", from);
+            message.addProperty("count", count);
+        } else if (command == Command.GET_BLOCK || command == Command.GET_TRANSACTION) {
+            message.addProperty("hash", hash);
+        } else if (command == Command.ANNOUNCE) {
+            message.addProperty("data", data);
+            message.addProperty("peer", peer);
+        }
+        return message;
+    }
+
+    public int getChoice() {
+        return choice;
+    }
+
+    /**
+     * @return the command of this request, or null if the choice is not a known command
+     */
+    public Command getCommand() {
+        return Command.fromChoice(choice);
+    }
+
+    public int getCorrelationId() {
+        return correlationId;
+    }
+
+    public void setCorrelationId(int correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public void setDifficulty(int difficulty) {
+        this.difficulty = difficulty;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getNewData() {
+        return newData;
+    }
+
+    public void setNewData(String newData) {
+        this.newData = newData;
+    }
+
+    public List<String> getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(List<String> transactions) {
+        this.transactions = transactions;
+    }
+
+    public long getTransactionId() {
+        return transactionId;
+    }
+
+    public void setTransactionId(long transactionId) {
+        this.transactionId = transactionId;
+    }
+
+    public long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public void setWaitMillis(long waitMillis) {
+        this.waitMillis = waitMillis;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public void setFrom(int from) {
+        this.from = from;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public void setPeer(String peer) {
+        this.peer = peer;
+    }
+}
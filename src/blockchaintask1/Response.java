@@ -0,0 +1,49 @@
+package blockchaintask1;
+
+/**
+ * This class holds one server response: the correlation id of the request it answers, a status and the text.
+ */
+public class Response {
+    private final int correlationId;
+    private final byte status;
+    private final String text;
+
+    /**
+     * @param correlationId Correlation id of the request this response answers
+     * @param status WireProtocol.STATUS_OK, WireProtocol.STATUS_ERROR or WireProtocol.STATUS_PARTIAL
+     * @param text Text of the response
+     */
+    public Response(int correlationId, byte status, String text) {
+        this.correlationId = correlationId;
+        this.status = status;
+        this.text = text;
+    }
+
+    public int getCorrelationId() {
+        return correlationId;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == WireProtocol.STATUS_OK;
+    }
+
+    /**
+     * @return true if this is one page of a streamed response, and more frames follow for the same request
+     */
+    public boolean isPartial() {
+        return status == WireProtocol.STATUS_PARTIAL;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
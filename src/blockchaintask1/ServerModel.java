@@ -1,88 +1,666 @@
 package blockchaintask1;
 
 import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class acts as the model for {@link BlockChainServerTCP}
  * It does the requested operation per the given user choice and returns the result
  * It holds the blockchain and the methods required for its operation
+ * It is shared by every connected client. Requests that only read the chain (status, verify, view) hold a read lock
+ * and run concurrently, requests that change it (corrupt, repair) hold the write lock and run one at a time.
+ * Blocks are mined one at a time, by add, add batch and the block assembler, as a {@link MiningTask} that holds no
+ * lock on the chain, see {@link #mineOnTip}. The block is only added once its proof of work is found, and a block
+ * from another node that takes the most recent place meanwhile cancels the search, which starts again on top of it.
+ * A search is given up after -Dminer.timeoutMillis (10 minutes by default) or when a client cancels it, and its
+ * progress is part of the status. The difficulty of a block must be from 0 to 64, the number of hex digits of a hash.
+ * Transactions can also be submitted to a {@link Mempool}: the client gets a transaction id back at once, and a
+ * {@link BlockAssembler} thread mines the waiting transactions into blocks in the background. The client can
+ * then ask for the status of its transaction, and wait for it to be confirmed. These requests take no lock.
+ * A repair holds the write lock until it is done, so it is run by a {@link ChainRepairer} whose progress can be
+ * asked for, and which can be cancelled, by requests that take no lock either.
+ * A range of blocks can be streamed to a client a page at a time, see {@link #streamBlocks}, so that viewing a long
+ * chain does not build it as one String.
+ * The durations of verifications and repairs go to {@link Metrics}, which the METRICS command reports along with
+ * the chain and mempool sizes.
+ * A node can be one of several in a {@link PeerNetwork}: every block it mines is announced to its peers, and the
+ * blocks they announce are added without mining them again, see {@link #receiveBlock}.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/util/concurrent/locks/ReentrantReadWriteLock.html
  */
 public class ServerModel {
     BlockChain blockChain;
+    private ChainStore store;   // Set when the chain is persisted with -Dstore.dir
+    private final ReadWriteLock chainLock = new ReentrantReadWriteLock();
+    private final Mempool mempool = new Mempool(Integer.getInteger("mempool.capacity", 10000),
+            Integer.getInteger("mempool.maxConfirmedTracked", 100000));
+    private final Thread assembler;
+    private volatile ChainRepairer repairer;    // The repair in progress, null if there is none
+    private volatile PeerNetwork peers;         // Other nodes mined blocks are announced to, null if there are none
+    private final Lock miningLock = new ReentrantLock();
+    private volatile MiningTask mining;         // The search in progress, null if there is none
+    private volatile boolean shuttingDown;
+    private final long miningTimeoutMillis = Long.getLong("miner.timeoutMillis", 600000);
+
+    // A hash has 64 hex digits, so no block can have more leading zeroes
+    static final int MAX_DIFFICULTY = 64;
+
+    // A client may not hold its connection for longer than this while waiting for a confirmation
+    private static final long MAX_WAIT_MILLIS = 60000;
+
+    // A page of a streamed view is sent once it holds this many characters
+    private static final int VIEW_PAGE_CHARS = 64 * 1024;
+
+    // Another node gets at most this many blocks per GET_BLOCKS or GET_BODIES request
+    static final int MAX_BLOCKS_PER_REQUEST = 1000;
+
+    // Headers are a fraction of the size of the blocks, so more of them fit in a GET_HEADERS response
+    static final int MAX_HEADERS_PER_REQUEST = 4000;
+
+    /**
+     * Receives the pages of a streamed view, see {@link #streamBlocks}
+     */
+    public interface PageWriter {
+        void write(String page) throws IOException;
+    }
 
     /**
      * Constructor initializes the blockchain, adds the genesis block of difficulty level as 2 and computes the required nonce.
      * It also computes the estimates hashes per second for the server machine
+     * When -Dstore.dir is set the chain is opened from that directory instead, and the genesis block is only mined
+     * if the stored chain is empty. The block assembler is not started, see {@link #start()}.
      */
-    ServerModel() {
+    private ServerModel() {
         System.out.println("Initializing blockchain..");
-        blockChain = new BlockChain();
-        Block genesis = new Block(0, new Timestamp(System.currentTimeMillis()), "", 2);
-        genesis.proofOfWork();
-        blockChain.computeHashesPerSecond();
-        blockChain.addBlock(genesis);
+        String storeDirectory = System.getProperty("store.dir");
+        if (storeDirectory != null) {
+            long startTime = System.nanoTime();
+            try {
+                store = ChainStore.fromSystemProperties(storeDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open the block store in " + storeDirectory, e);
+            }
+            blockChain = new BlockChain(store);
+            System.out.printf("Opened %d stored blocks in %d milliseconds%n", blockChain.getChainSize(),
+                    (System.nanoTime() - startTime) / 1000000);
+        } else {
+            blockChain = new BlockChain();
+        }
+        if (blockChain.getChainSize() == 0) {
+            Block genesis = new Block(0, new Timestamp(System.currentTimeMillis()), "", 2);
+            genesis.proofOfWork();
+            blockChain.computeHashesPerSecond();
+            blockChain.addBlock(genesis);
+        } else {
+            blockChain.computeHashesPerSecond();
+        }
+
+        Metrics.registerGauge("blockchain_chain_size", "Blocks on the chain", () -> blockChain.getChainSize());
+        Metrics.registerGauge("blockchain_mempool_size", "Transactions waiting in the mempool", mempool::size);
+
+        // Started by start(), once the model it mines for is constructed
+        assembler = new Thread(BlockAssembler.fromSystemProperties(mempool, this), "block-assembler");
+        assembler.setDaemon(true);
+    }
+
+    /**
+     * Creates the model and starts its background block assembler
+     */
+    static ServerModel start() {
+        ServerModel model = new ServerModel();
+        model.assembler.start();
+        return model;
+    }
+
+    /**
+     * Mines one block holding the given transactions, appends it to the chain and confirms them in the mempool.
+     * Called by the {@link BlockAssembler}, it mines like the ADD_BATCH command does, without a timeout.
+     * @param batch Transactions of the block, drained from the mempool
+     * @param difficulty Difficulty of the block
+     * @throws IllegalStateException if the server shuts down first
+     */
+    void appendTransactions(List<Mempool.PendingTransaction> batch, int difficulty) {
+        List<String> transactions = new ArrayList<>(batch.size());
+        for (Mempool.PendingTransaction transaction : batch)
+            transactions.add(transaction.getData());
+        Block block = mineOnTip(index -> new Block(index, new Timestamp(System.currentTimeMillis()), transactions,
+                difficulty), 0);
+        String hash = block.calculateHash();
+        chainLock.readLock().lock();
+        try {
+            // A fork may have replaced the block since it was appended, then the transactions are mined again
+            if (blockChain.indexOf(hash) == block.getIndex())
+                mempool.confirm(batch, block.getIndex());
+            else
+                mempool.requeue(batch);
+        } finally {
+            chainLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Mines a block on top of the most recent block and appends it. The proof of work is searched without holding
+     * the chain lock, so that other requests and the blocks of other nodes are not held up. When a block from
+     * another node becomes the most recent one meanwhile, {@link #tipChanged()} cancels the search, and a new block
+     * is built on the new most recent block and mined instead.
+     * @param create Builds the block to mine, from the index it gets
+     * @param timeoutMillis Longest one search may run, 0 for no limit
+     * @return the block, once it is on the chain and announced
+     * @throws IllegalStateException if the search times out, is cancelled by a client, or the server shuts down
+     * first, or if the chain retargets to an invalid target
+     */
+    private Block mineOnTip(IntFunction<Block> create, long timeoutMillis) {
+        miningLock.lock();
+        try {
+            while (true) {
+                MiningTask task;
+                chainLock.readLock().lock();
+                try {
+                    Block block = create.apply(blockChain.getChainSize());
+                    blockChain.prepareBlock(block);
+                    if (block.getBits() != 0 && !DifficultyTarget.isValid(block.getBits()))
+                        throw new IllegalStateException("Invalid target " + Integer.toHexString(block.getBits())
+                                + " for block " + block.getIndex());
+                    task = new MiningTask(block, new AtomicBoolean(shuttingDown), timeoutMillis);
+                    // Set before the lock is released, so that a block added next cancels this search
+                    mining = task;
+                } finally {
+                    chainLock.readLock().unlock();
+                }
+                MiningResult result;
+                try {
+                    result = task.run();
+                } finally {
+                    mining = null;
+                }
+                if (task.isExpired())
+                    throw new IllegalStateException("Gave up mining after " + timeoutMillis + " milliseconds: " + task);
+                if (task.isAbandoned())
+                    throw new IllegalStateException("Mining was cancelled: " + task);
+                if (shuttingDown)
+                    throw new IllegalStateException("The server is shutting down");
+
+                Block block = task.getBlock();
+                chainLock.writeLock().lock();
+                try {
+                    // A block that lost the race to one from another node is mined again on top of it
+                    if (result != null && block.getPreviousHash().equals(blockChain.getChainHash())) {
+                        block.setNonce(result.getNonce());
+                        blockChain.appendMined(block);
+                        mined(block);
+                        return block;
+                    }
+                } finally {
+                    chainLock.writeLock().unlock();
+                }
+            }
+        } finally {
+            miningLock.unlock();
+        }
+    }
+
+    /**
+     * Called with the write lock held once the most recent block changed other than by mining. The block being
+     * mined no longer follows it, so its search is cancelled, to start again on the new most recent block
+     */
+    private void tipChanged() {
+        MiningTask task = mining;
+        if (task != null && !task.getBlock().getPreviousHash().equals(blockChain.getChainHash()))
+            task.cancel();
+    }
+
+    /**
+     * Makes the node announce the blocks it mines to the other nodes of a network
+     */
+    void setPeers(PeerNetwork peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Called with the write lock held once this node mined a block, to announce it to its peers
+     */
+    private void mined(Block block) {
+        PeerNetwork network = peers;
+        if (network != null)
+            network.announce(BlockJson.PEER_GSON.toJson(block, Block.class), null);
+    }
+
+    /**
+     * Takes a block announced by another node. A block that follows the chain is checked and added, then
+     * announced to the other peers in turn. A block the chain does not know the parent of may belong to a longer
+     * fork, so this node syncs with the sender, in the background.
+     * @param request ANNOUNCE request holding the block and the sender's address
+     * @return what was done with the block
+     * @throws IllegalArgumentException if the block follows the chain but its proof of work is wrong
+     */
+    private String receiveBlock(Request request) {
+        Block block = BlockJson.PEER_GSON.fromJson(request.getData(), Block.class);
+        String hash = block.calculateHash();
+        chainLock.writeLock().lock();
+        try {
+            if (blockChain.indexOf(hash) >= 0)
+                return "Already have block " + block.getIndex() + "\n";
+            if (block.getPreviousHash().equals(blockChain.getChainHash())) {
+                blockChain.appendMined(block);
+                tipChanged();
+                PeerNetwork network = peers;
+                if (network != null)
+                    network.announce(request.getData(), request.getPeer());
+                return "Added block " + block.getIndex() + "\n";
+            }
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+        PeerNetwork network = peers;
+        if (network != null && request.getPeer() != null)
+            network.sync(request.getPeer());
+        return "Block " + block.getIndex() + " does not follow the chain, syncing with " + request.getPeer() + "\n";
+    }
+
+    /**
+     * Reads the chain under the read lock, for the {@link PeerNetwork}
+     */
+    <T> T readChain(Function<BlockChain, T> reader) {
+        chainLock.readLock().lock();
+        try {
+            return reader.apply(blockChain);
+        } finally {
+            chainLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Switches the chain to a fork fetched from another node, if the fork holds more work
+     * @param from Index of the first block of the fork
+     * @param fork Blocks of the fork, in order
+     * @return the JSON of the new most recent block, to announce, or null if the chain kept its blocks
+     * @throws IllegalArgumentException if the fork does not follow the chain or a proof of work is wrong
+     */
+    String switchToFork(int from, List<Block> fork) {
+        chainLock.writeLock().lock();
+        try {
+            if (!blockChain.switchTo(from, fork))
+                return null;
+            // The transactions of the replaced blocks are confirmed again where the fork holds them, or mined again
+            int requeued = mempool.blocksReplaced(from,
+                    data -> blockChain.indexOfTransaction(Utils.getSHA256Hash(data)));
+            if (requeued > 0)
+                System.out.printf("%d transactions of replaced blocks are pending again%n", requeued);
+            tipChanged();
+            return BlockJson.PEER_GSON.toJson(blockChain.getLatestBlock(), Block.class);
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the background block assembler and closes the block store. Transactions still in the mempool are not mined
+     */
+    public void shutdown() {
+        shuttingDown = true;
+        assembler.interrupt();
+        MiningTask task = mining;
+        if (task != null)
+            task.cancel();
+        chainLock.writeLock().lock();
+        try {
+            if (store != null)
+                store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            chainLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sends a range of blocks as JSON arrays, one page at a time, so that the memory used does not depend on the
+     * size of the range. The read lock is only held while a page is built, not while the client receives it, so a
+     * slow client does not hold up the requests that change the chain. Each page is consistent, but a block
+     * changed between two pages shows its new state in a later page.
+     * @param request VIEW_RANGE request holding the index of the first block and the number of blocks
+     * @param pages Receives each page, a JSON array of at least one block
+     * @return the text of the last frame, which says which blocks were sent
+     * @throws IllegalArgumentException if the range starts before the genesis block or has a negative count
+     */
+    public String streamBlocks(Request request, PageWriter pages) throws IOException {
+        int from = request.getFrom();
+        if (from < 0 || request.getCount() < 0)
+            throw new IllegalArgumentException("Invalid range of " + request.getCount() + " blocks from " + from);
+        int chainSize;
+        String chainHash;
+        chainLock.readLock().lock();
+        try {
+            chainSize = blockChain.getChainSize();
+            chainHash = blockChain.getChainHash();
+        } finally {
+            chainLock.readLock().unlock();
+        }
+        int end = (int) Math.min((long) from + request.getCount(), chainSize);
+
+        // Blocks come from the chain's JSON cache when they can, see BlockChain.getBlockJson
+        StringBuilder page = new StringBuilder();
+        int index = from;
+        while (index < end) {
+            page.setLength(0);
+            page.append('[');
+            chainLock.readLock().lock();
+            try {
+                while (index < end && page.length() < VIEW_PAGE_CHARS) {
+                    if (page.length() > 1)
+                        page.append(',');
+                    page.append(blockChain.getBlockJson(index));
+                    index++;
+                }
+            } finally {
+                chainLock.readLock().unlock();
+            }
+            page.append(']');
+            pages.write(page.toString());
+        }
+        if (index == from)
+            return String.format("No blocks from %d, the chain has %d blocks\n", from, chainSize);
+        return String.format("Sent blocks %d to %d of %d, chain hash %s\n", from, index - 1, chainSize, chainHash);
     }
 
     /**
-     * This method is called by the server
+     * This method is called by the server for JSON messages
      * @param message {@link JsonObject} JSON object that contains client's message
      * corresponding id.
      */
     public String processClientMessage(JsonObject message) {
-        int choice = message.get("choice").getAsInt();
+        return processRequest(Request.fromJson(message));
+    }
+
+    /**
+     * This method is called by the server, possibly by several connections at the same time
+     * @param request {@link Request} holding the client's choice and the values it needs
+     * @return the text to send back to the client
+     */
+    public String processRequest(Request request) {
+        Command command = request.getCommand();
+        if (command == null)
+            return "Invalid choice!";
+        if (command == Command.VIEW_RANGE) {
+            // Without a connection to stream to, the pages are put together
+            StringBuilder sb = new StringBuilder();
+            try {
+                String last = streamBlocks(request, page -> sb.append(page).append("\n"));
+                return sb.append(last).toString();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (command.getAccess() == Command.Access.NONE)
+            return processCommand(command, request);
+        Lock lock = command.modifiesChain() ? chainLock.writeLock() : chainLock.readLock();
+        lock.lock();
+        try {
+            String response = processCommand(command, request);
+            if (command.modifiesChain())
+                tipChanged();
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the whole difficulty of a block, or its fractional difficulty if it was mined against a target
+     */
+    private static String formatDifficulty(Block block) {
+        if (block.getBits() == 0)
+            return String.valueOf(block.getDifficulty());
+        return String.format(Locale.ROOT, "%.2f", DifficultyTarget.difficultyOf(block));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the difficulty is not from 0 to {@link #MAX_DIFFICULTY}, since a search
+     * for more leading zeroes than a hash has would never end
+     */
+    static void checkDifficulty(int difficulty) {
+        if (difficulty < 0 || difficulty > MAX_DIFFICULTY)
+            throw new IllegalArgumentException("Difficulty must be from 0 to " + MAX_DIFFICULTY + ", got "
+                    + difficulty);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the range of blocks another node asks for is negative
+     */
+    private static void checkRange(Request request) {
+        if (request.getFrom() < 0 || request.getCount() < 0)
+            throw new IllegalArgumentException("Invalid range of " + request.getCount() + " blocks from "
+                    + request.getFrom());
+    }
+
+    /**
+     * Does the operation for the given command. The caller holds the lock the command needs
+     * @throws IllegalStateException if a transaction is submitted while the mempool is full
+     */
+    private String processCommand(Command command, Request request) {
+        switch (command) {
             // Return basic details when choice is 0
-            if (choice == 0) {
+            case STATUS: {
+                // Every line is kept up to date by the chain, so status does not walk the chain
+                Block latest = blockChain.getLatestBlock();
+                MiningTask task = mining;
                 return "Number of blocks on the chain: " + blockChain.getChainSize() + "\n" +
-                        "Difficulty of most recent block: " + blockChain.getLatestBlock().getDifficulty() + "\n" +
+                        "Difficulty of most recent block: " + formatDifficulty(latest) + "\n" +
                         "Total difficulty for all blocks: " + blockChain.getTotalDifficulty() + "\n" +
                         "Approximate hashes per second on this machine: " + blockChain.getHashesPerSecond() + "\n" +
-                        "Expected total hashes required for the whole chain: " + blockChain.getTotalExpectedHashes() + "\n" +
-                        "Nonce for most recent block: " + blockChain.getLatestBlock().getNonce() + "\n" +
-                        "Chain hash: " + blockChain.getChainHash() + "\n";
+                        "Expected total hashes required for the whole chain: " + blockChain.getTotalWork() + "\n" +
+                        "Nonce for most recent block: " + latest.getNonce() + "\n" +
+                        "Chain hash: " + blockChain.getChainHash() + "\n" +
+                        (blockChain.getTargetBlockMillis() > 0 ? "Target block interval: "
+                                + blockChain.getTargetBlockMillis() + " milliseconds\n" : "") +
+                        (task != null ? task + "\n" : "");
             }
+
             // Add block to the blockchain if choice is 1
-            else if (choice == 1) {
-                int difficulty = message.get("difficulty").getAsInt();
-                String data = message.get("data").getAsString();
+            case ADD: {
+                checkDifficulty(request.getDifficulty());
                 long startTime = System.nanoTime();
-                Block b = new Block(blockChain.getChainSize(), new Timestamp(System.currentTimeMillis()), data, difficulty);
-                blockChain.addBlock(b);
+                mineOnTip(index -> new Block(index, new Timestamp(System.currentTimeMillis()), request.getData(),
+                        request.getDifficulty()), miningTimeoutMillis);
                 long estimatedTime = (System.nanoTime() - startTime)/1000000;
                 return String.format("Total execution time to add this block was %d milliseconds\n\n",estimatedTime);
             }
 
-            // Verify chain if choice is 2
-            else if (choice == 2) {
+            // Add one block holding every transaction of a batch if choice is 7
+            case ADD_BATCH: {
+                checkDifficulty(request.getDifficulty());
+                long startTime = System.nanoTime();
+                mineOnTip(index -> new Block(index, new Timestamp(System.currentTimeMillis()),
+                        request.getTransactions(), request.getDifficulty()), miningTimeoutMillis);
+                long estimatedTime = (System.nanoTime() - startTime)/1000000;
+                return String.format("Total execution time to add a block of %d transactions was %d milliseconds\n\n",
+                        request.getTransactions().size(), estimatedTime);
+            }
+
+            // Queue a transaction for the background miner if choice is 8
+            case SUBMIT: {
+                long transactionId = mempool.submit(request.getData());
+                if (transactionId < 0)
+                    throw new IllegalStateException("Mempool is full, try again later");
+                return "Transaction id: " + transactionId + "\n";
+            }
+
+            // Report where a submitted transaction is if choice is 9, waiting for its block if asked to
+            case TX_STATUS: {
+                long transactionId = request.getTransactionId();
+                int blockIndex = mempool.getBlockIndex(transactionId);
+                if (blockIndex == Mempool.PENDING && request.getWaitMillis() > 0) {
+                    try {
+                        blockIndex = mempool.awaitConfirmation(transactionId,
+                                Math.min(request.getWaitMillis(), MAX_WAIT_MILLIS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (blockIndex == Mempool.PENDING)
+                    return "Transaction " + transactionId + " is pending, " + mempool.size() +
+                            " transactions are waiting\n";
+                if (blockIndex == Mempool.UNKNOWN)
+                    return "Transaction " + transactionId + " is unknown\n";
+                if (blockIndex == Mempool.FAILED)
+                    return "Transaction " + transactionId + " failed, its block could not be mined\n";
+                return "Transaction " + transactionId + " is confirmed in block " + blockIndex + "\n";
+            }
+
+            // Verify chain if choice is 2, only from the first block that changed since the last verification
+            // Verify every block again if choice is 10
+            case VERIFY:
+            case VERIFY_FULL: {
                 StringBuilder sb = new StringBuilder();
                 System.out.println("Verifying entire chain");
                 System.out.println();
                 long startTime = System.nanoTime();
-                sb.append("Chain verification: ").append(blockChain.isChainValid()).append("\n");
+                ChainValidator.Result result = blockChain.validate(command == Command.VERIFY_FULL);
+                Metrics.recordVerify(System.nanoTime() - startTime);
+                sb.append("Chain verification: ").append(result.isValid()).append("\n");
+                if (!result.isValid())
+                    sb.append("Invalid blocks: ").append(result.getInvalidIndexes()).append("\n");
                 long estimatedTime = (System.nanoTime() - startTime)/1000000;
                 sb.append("Total execution time required to verify the chain was ").append(estimatedTime).append(" milliseconds\n");
                 return sb.toString();
             }
+
             // Return chain as a string if choice is 3
-            else if (choice == 3)  {
+            case VIEW:
                 return blockChain.toString() + "\n";
-            }
+
             // Corrupt the chain if choice is 4
-            else if (choice == 4) {
-                int id = message.get("id").getAsInt();
-                String newData = message.get("newData").getAsString();
-                blockChain.getBlock(id).setData(newData);
+            case CORRUPT: {
+                int id = request.getId();
+                String newData = request.getNewData();
+                Block block = blockChain.getBlock(id);
+                // A block of several transactions gets its first transaction replaced
+                List<String> transactions = block.getTransactions();
+                if (transactions != null) {
+                    if (transactions.isEmpty())
+                        throw new IllegalArgumentException("Block " + id + " holds no transaction to corrupt");
+                    // The repair puts the root of the new transactions into the header, so they must have one
+                    List<String> corrupted = new ArrayList<>(transactions);
+                    corrupted.set(0, newData);
+                    if (!MerkleTree.hasRoot(corrupted))
+                        throw new IllegalArgumentException("Block " + id + " cannot hold " + newData
+                                + ", its transactions would have no Merkle root");
+                    block.setTransaction(0, newData);
+                } else
+                    block.setData(newData);
+                // Tells a persistent chain to store the change, the block already told the chain to verify it again
+                blockChain.updateBlock(block);
                 return String.format("Block %d now holds %s\n\n", id, newData);
             }
+
             // Repair corrupt blocks if choice is 5
-            else if (choice == 5) {
+            case REPAIR: {
                 System.out.println("Repairing the entire chain");
                 long startTime = System.nanoTime();
-                blockChain.repairChain();
+                ChainRepairer current = new ChainRepairer(blockChain);
+                repairer = current;
+                boolean repaired;
+                try {
+                    repaired = current.repair();
+                } finally {
+                    repairer = null;
+                    Metrics.recordRepair(System.nanoTime() - startTime);
+                }
                 long estimatedTime = (System.nanoTime() - startTime)/1000000;
-                return "Total execution time required to repair the chain was " + estimatedTime + " milliseconds\n";
+                System.out.println(current);
+                return (repaired ? "" : "Repair cancelled, the chain is only partly repaired\n")
+                        + String.format("%d blocks repaired, %d blocks re-mined, %d hashes spent\n",
+                        current.getBlocksRepaired(), current.getBlocksRemined(), current.getHashesSpent())
+                        + "Total execution time required to repair the chain was " + estimatedTime + " milliseconds\n";
+            }
+
+            // Report the progress of the repair in progress if choice is 11
+            case REPAIR_STATUS: {
+                ChainRepairer current = repairer;
+                return current == null ? "No repair in progress\n" : "Repairing: " + current + "\n";
+            }
+
+            // Get a block by its hash if choice is 15
+            case GET_BLOCK: {
+                int index = blockChain.indexOf(request.getHash());
+                if (index < 0)
+                    return "No block with hash " + request.getHash() + "\n";
+                return blockChain.getBlockJson(index) + "\n";
+            }
+
+            // Get a transaction by its hash if choice is 16
+            case GET_TRANSACTION: {
+                int index = blockChain.indexOfTransaction(request.getHash());
+                if (index < 0)
+                    return "No transaction with hash " + request.getHash() + "\n";
+                Block block = blockChain.getBlock(index);
+                int position = BlockChain.positionOfTransaction(block, request.getHash());
+                String transaction = block.getTransactions() != null ? block.getTransactions().get(position)
+                        : block.getData();
+                return String.format("Transaction %d of block %d: %s\n", position, index, transaction);
+            }
+
+            // Send blocks to another node if choice is 17
+            case GET_BLOCKS: {
+                checkRange(request);
+                return BlockJson.toPeerJson(blockChain, request.getFrom(),
+                        Math.min(request.getCount(), MAX_BLOCKS_PER_REQUEST));
+            }
+
+            // Send compact block headers to another node if choice is 19
+            case GET_HEADERS: {
+                checkRange(request);
+                return BlockJson.toHeaderJson(blockChain, request.getFrom(),
+                        Math.min(request.getCount(), MAX_HEADERS_PER_REQUEST));
+            }
+
+            // Send the transactions of blocks to another node if choice is 20
+            case GET_BODIES: {
+                checkRange(request);
+                return BlockJson.toBodyJson(blockChain, request.getFrom(),
+                        Math.min(request.getCount(), MAX_BLOCKS_PER_REQUEST));
+            }
+
+            // Take a block mined by another node if choice is 18
+            case ANNOUNCE:
+                return receiveBlock(request);
+
+            // Report the live metrics if choice is 14
+            case METRICS:
+                return Metrics.report();
+
+            // Cancel the repair in progress if choice is 12
+            case REPAIR_CANCEL: {
+                ChainRepairer current = repairer;
+                if (current == null)
+                    return "No repair in progress\n";
+                current.cancel();
+                return "Repair cancelled: " + current + "\n";
+            }
+
+            // Give up the block being mined if choice is 21
+            case MINING_CANCEL: {
+                MiningTask task = mining;
+                if (task == null)
+                    return "No block is being mined\n";
+                task.abandon();
+                return "Mining cancelled: " + task + "\n";
             }
-            return "Invalid choice!";
         }
+        return "Invalid choice!";
+    }
 }
-
@@ -0,0 +1,131 @@
+package blockchaintask1;
+
+/**
+ * This class is a SHA-256 implementation that can resume from a cached midstate.
+ * SHA-256 consumes its input in 64 byte chunks, carrying a state of eight 32 bit words from one chunk to the next.
+ * When many messages share the same prefix, like a block header during a nonce search, the state after the
+ * complete chunks of the prefix can be computed once. Each message then only needs the chunks holding the
+ * end of the prefix, the changing tail and the padding.
+ * No objects are created per hash. An instance is not thread safe, each mining thread uses its own.
+ *
+ * References:
+ * 1. https://nvlpubs.nist.gov/nistpubs/FIPS/NIST.FIPS.180-4.pdf
+ * 2. https://en.wikipedia.org/wiki/SHA-2#Pseudocode
+ */
+public class Sha256Midstate {
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int CHUNK_SIZE = 64;
+
+    private final int[] midstate = new int[8];  // State after the complete chunks of the prefix
+    private final long prefixLength;            // Total prefix length in bytes
+    private final int pendingLength;            // Prefix bytes that did not fill a complete chunk
+
+    // Working buffers reused by every hash
+    private final byte[] chunks;
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+
+    /**
+     * Compresses the complete chunks of the prefix and keeps the rest for each hash.
+     * @param prefix bytes shared by every message hashed by this instance
+     * @param maxTailLength largest tail that will be passed to {@link #hash(byte[], int, byte[])}
+     */
+    public Sha256Midstate(byte[] prefix, int maxTailLength) {
+        System.arraycopy(INITIAL_STATE, 0, midstate, 0, 8);
+        int completeChunks = prefix.length / CHUNK_SIZE;
+        for (int i = 0; i < completeChunks; i++)
+            compress(midstate, prefix, i * CHUNK_SIZE);
+
+        prefixLength = prefix.length;
+        pendingLength = prefix.length - completeChunks * CHUNK_SIZE;
+        // Room for the pending prefix bytes, the tail, the 0x80 marker and the 8 byte length, rounded up to chunks
+        int bufferLength = pendingLength + maxTailLength + 1 + 8;
+        chunks = new byte[(bufferLength + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE];
+        System.arraycopy(prefix, completeChunks * CHUNK_SIZE, chunks, 0, pendingLength);
+    }
+
+    /**
+     * Computes SHA-256 of the prefix followed by the tail
+     * @param tail bytes that follow the prefix
+     * @param tailLength number of tail bytes to use
+     * @param out array that receives the 32 byte hash
+     */
+    public void hash(byte[] tail, int tailLength, byte[] out) {
+        int messageEnd = pendingLength + tailLength;
+        System.arraycopy(tail, 0, chunks, pendingLength, tailLength);
+        // Padding: a single 1 bit, zeroes, then the message length in bits as a big endian 64 bit number
+        chunks[messageEnd] = (byte) 0x80;
+        int totalLength = (messageEnd + 1 + 8 + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+        for (int i = messageEnd + 1; i < totalLength - 8; i++)
+            chunks[i] = 0;
+        long bitLength = (prefixLength + tailLength) * 8;
+        for (int i = 0; i < 8; i++)
+            chunks[totalLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+
+        System.arraycopy(midstate, 0, state, 0, 8);
+        for (int offset = 0; offset < totalLength; offset += CHUNK_SIZE)
+            compress(state, chunks, offset);
+
+        for (int i = 0; i < 8; i++) {
+            out[4 * i] = (byte) (state[i] >>> 24);
+            out[4 * i + 1] = (byte) (state[i] >>> 16);
+            out[4 * i + 2] = (byte) (state[i] >>> 8);
+            out[4 * i + 3] = (byte) state[i];
+        }
+    }
+
+    /**
+     * Runs the SHA-256 compression function on one 64 byte chunk and adds the result into h
+     */
+    private void compress(int[] h, byte[] chunk, int offset) {
+        for (int t = 0; t < 16; t++) {
+            int i = offset + 4 * t;
+            w[t] = (chunk[i] << 24) | ((chunk[i + 1] & 0xFF) << 16) | ((chunk[i + 2] & 0xFF) << 8) | (chunk[i + 3] & 0xFF);
+        }
+        for (int t = 16; t < 64; t++) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = hh + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+}
@@ -6,8 +6,30 @@ import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class that undergoes used operations
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/lang/ThreadLocal.html
+ * 2. https://stackoverflow.com/questions/9655181/how-to-convert-a-byte-array-to-a-hex-string-in-java
  */
 public class Utils {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // MessageDigest is not thread safe, so every thread keeps its own instance instead of looking one up per hash
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    /**
+     * Fetches the SHA-256 digest of the calling thread. It is reset after each call to digest().
+     * @return a SHA-256 {@link MessageDigest} owned by the calling thread
+     */
+    public static MessageDigest getSHA256Digest() {
+        return SHA256_DIGEST.get();
+    }
 
     /**
      * Computes SHA-256 hash of a given input string
@@ -15,32 +37,43 @@ public class Utils {
      * @return Hex representation of SHA256 hash
      */
     public static String getSHA256Hash(String inputString) {
-        byte[] encodedBytes;
-        String hexString = null;
-        try {
-            // Create a message digest and use it to get encoded bytes
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            // Get bytes from the digest
-            encodedBytes = md.digest(inputString.getBytes(StandardCharsets.UTF_8));
-            hexString = convertByteToHexadecimal(encodedBytes);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        return hexString;
+        // Get bytes from the digest
+        byte[] encodedBytes = getSHA256Digest().digest(inputString.getBytes(StandardCharsets.UTF_8));
+        return convertByteToHexadecimal(encodedBytes);
     }
 
     /**
      * Method that converts an array of bytes to its hexadecimal representation
      * @param byteArray array bytes to be encoded
-     * @return hexadecimal value of byteArray
+     * @return hexadecimal value of byteArray, in upper case
+     */
+    public static String convertByteToHexadecimal(byte[] byteArray) {
+        // Each byte becomes two hex characters, high nibble first
+        char[] hexChars = new char[byteArray.length * 2];
+        for (int i = 0; i < byteArray.length; i++) {
+            hexChars[2 * i] = HEX_DIGITS[(byteArray[i] >> 4) & 0x0F];
+            hexChars[2 * i + 1] = HEX_DIGITS[byteArray[i] & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Converts a hexadecimal String, such as a hash, back to its bytes
+     * @param hex String of an even number of hex digits, in either case
+     * @return the bytes, or null if the String is not hexadecimal
      */
-    private static String convertByteToHexadecimal(byte[] byteArray) {
-        // Iterating through each byte in the array
-        StringBuilder sb = new StringBuilder();
-        for (byte i : byteArray) {
-            sb.append(String.format("%02X", i));
+    public static byte[] convertHexadecimalToBytes(String hex) {
+        if (hex.length() % 2 != 0)
+            return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0)
+                return null;
+            bytes[i] = (byte) ((high << 4) | low);
         }
-        return sb.toString();
+        return bytes;
     }
 
     /**
@@ -72,4 +105,26 @@ public class Utils {
         }
         return true;
     }
+
+    /**
+     * Checks if the given binary hash has specified number (n) of 0 hex digits in the front.
+     * Gives the same answer as {@link #hasLeadingZeroes(String, int)} on the hex form of the hash,
+     * without having to build that hex String first.
+     * @param digest raw SHA-256 hash to be verified
+     * @param n number of leading hex 0s the hash must have
+     * @return boolean representing whether hash has n leading hex 0s
+     */
+    public static boolean hasLeadingZeroes(byte[] digest, int n) {
+        if (n <= 0)
+            return true;
+        if (n > digest.length * 2)
+            return false;
+        int fullBytes = n / 2;
+        for (int i = 0; i < fullBytes; i++) {
+            if (digest[i] != 0)
+                return false;
+        }
+        // An odd difficulty only needs the high nibble of the next byte to be 0
+        return n % 2 == 0 || (digest[fullBytes] & 0xF0) == 0;
+    }
 }
@@ -0,0 +1,315 @@
+package blockchaintask1;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class encodes and decodes the frames sent between {@link BlockChainClientTCP} and {@link BlockChainServerTCP}.
+ * Every frame is length prefixed:
+ * 1. int - number of bytes that follow
+ * 2. byte - protocol version
+ * 3. byte - payload format, binary or JSON
+ * 4. byte - the command's choice for a request, the status for a response
+ * 5. int - correlation id, chosen by the client and copied into the response
+ * 6. the payload
+ * In the binary format a request payload holds the values of its command: an int difficulty and the data for
+ * ADD, an int block id and the new data for CORRUPT, an int difficulty, an int count and that many transactions
+ * for ADD_BATCH, the data for SUBMIT, a long transaction id and a long wait in milliseconds for TX_STATUS,
+ * an int first index and an int count for VIEW_RANGE, GET_BLOCKS, GET_HEADERS and GET_BODIES, the hash for
+ * GET_BLOCK and GET_TRANSACTION, the block and the sender's address for ANNOUNCE, nothing for the others.
+ * A response payload is its text.
+ * A request can be answered by several frames: every frame but the last has the status STATUS_PARTIAL, and the
+ * last one has STATUS_OK or STATUS_ERROR. VIEW_RANGE uses this to send the blocks a page at a time.
+ * Strings are an int byte count (-1 for null) followed by their UTF-8 bytes.
+ * In the JSON format the payload is the UTF-8 JSON text, the same message the client used to send,
+ * so that the traffic can be read while debugging.
+ * The codecs read and write ByteBuffers owned by the caller, so that one pair of buffers can be reused for
+ * every frame of a connection. They throw {@link BufferOverflowException} if a frame does not fit, and a
+ * {@link ProtocolException} if a frame read does not hold what its header says, so that a malformed frame from
+ * the network is an IOException like any other failure of the connection.
+ *
+ * References:
+ * 1. https://docs.oracle.com/javase/8/docs/api/java/nio/charset/CharsetEncoder.html
+ */
+public final class WireProtocol {
+    public static final byte VERSION = 2;
+
+    public static final byte FORMAT_BINARY = 0;
+    public static final byte FORMAT_JSON = 1;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_PARTIAL = 2;    // More frames follow for the same request
+
+    // Version, format, type and correlation id
+    public static final int HEADER_LENGTH = 7;
+
+    // Frames larger than this are rejected, so that a bad length cannot make the reader allocate without limit
+    public static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Writes a whole request frame, length included, at the buffer's position
+     * @param request Request to encode
+     * @param format FORMAT_BINARY or FORMAT_JSON
+     * @param buffer Buffer that receives the frame
+     * @param encoder UTF-8 encoder, reused between calls
+     */
+    public static void encodeRequest(Request request, byte format, ByteBuffer buffer, CharsetEncoder encoder) {
+        int start = beginFrame(buffer, format, (byte) request.getChoice(), request.getCorrelationId());
+        if (format == FORMAT_JSON) {
+            putText(buffer, request.toJson().toString(), encoder);
+        } else {
+            Command command = request.getCommand();
+            if (command == Command.ADD) {
+                buffer.putInt(request.getDifficulty());
+                putString(buffer, request.getData(), encoder);
+            } else if (command == Command.CORRUPT) {
+                buffer.putInt(request.getId());
+                putString(buffer, request.getNewData(), encoder);
+            } else if (command == Command.ADD_BATCH) {
+                buffer.putInt(request.getDifficulty());
+                buffer.putInt(request.getTransactions().size());
+                for (String transaction : request.getTransactions())
+                    putString(buffer, transaction, encoder);
+            } else if (command == Command.SUBMIT) {
+                putString(buffer, request.getData(), encoder);
+            } else if (command == Command.TX_STATUS) {
+                buffer.putLong(request.getTransactionId());
+                buffer.putLong(request.getWaitMillis());
+            } else if (command == Command.VIEW_RANGE || command == Command.GET_BLOCKS
+                || command == Command.GET_HEADERS || command == Command.GET_BODIES) {
+                buffer.putInt(request.getFrom());
+                buffer.putInt(request.getCount());
+            } else if (command == Command.GET_BLOCK || command == Command.GET_TRANSACTION) {
+                putString(buffer, request.getHash(), encoder);
+            } else if (command == Command.ANNOUNCE) {
+                putString(buffer, request.getData(), encoder);
+                putString(buffer, request.getPeer(), encoder);
+            }
+        }
+        endFrame(buffer, start);
+    }
+
+    /**
+     * Reads a request from a frame whose version and format were checked by {@link #readFrameHeader}
+     * @param frame Buffer positioned at the type byte, limited to the end of the frame
+     * @param format Format from the frame header
+     * @return the decoded request
+     * @throws ProtocolException if the frame is malformed: too short for its values, a String longer than the
+     * frame, or JSON that is not a request
+     */
+    public static Request decodeRequest(ByteBuffer frame, byte format) throws ProtocolException {
+        try {
+            return readRequest(frame, format);
+        } catch (RuntimeException e) {
+            throw malformed("request", e);
+        }
+    }
+
+    private static Request readRequest(ByteBuffer frame, byte format) {
+        byte choice = frame.get();
+        int correlationId = frame.getInt();
+        Request request;
+        if (format == FORMAT_JSON) {
+            JsonObject message = (JsonObject) new JsonParser().parse(getText(frame));
+            request = Request.fromJson(message);
+            request.setCorrelationId(correlationId);
+            return request;
+        }
+        request = new Request(choice);
+        request.setCorrelationId(correlationId);
+        Command command = request.getCommand();
+        if (command == Command.ADD) {
+            request.setDifficulty(frame.getInt());
+            request.setData(getString(frame));
+        } else if (command == Command.CORRUPT) {
+            request.setId(frame.getInt());
+            request.setNewData(getString(frame));
+        } else if (command == Command.ADD_BATCH) {
+            request.setDifficulty(frame.getInt());
+            int count = frame.getInt();
+            // Each transaction takes at least its 4 byte length, which bounds a bad count
+            List<String> transactions = new ArrayList<>(Math.min(count, frame.remaining() / 4));
+            for (int i = 0; i < count; i++)
+                transactions.add(getString(frame));
+            request.setTransactions(transactions);
+        } else if (command == Command.SUBMIT) {
+            request.setData(getString(frame));
+        } else if (command == Command.TX_STATUS) {
+            request.setTransactionId(frame.getLong());
+            request.setWaitMillis(frame.getLong());
+        } else if (command == Command.VIEW_RANGE || command == Command.GET_BLOCKS
+                || command == Command.GET_HEADERS || command == Command.GET_BODIES) {
+            request.setFrom(frame.getInt());
+            request.setCount(frame.getInt());
+        } else if (command == Command.GET_BLOCK || command == Command.GET_TRANSACTION) {
+            request.setHash(getString(frame));
+        } else if (command == Command.ANNOUNCE) {
+            request.setData(getString(frame));
+            request.setPeer(getString(frame));
+        }
+        return request;
+    }
+
+    /**
+     * Writes a whole response frame, length included, at the buffer's position
+     * @param text Response text
+     * @param status STATUS_OK, STATUS_ERROR or STATUS_PARTIAL
+     * @param correlationId Correlation id of the request being answered
+     * @param format FORMAT_BINARY or FORMAT_JSON, normally the format of the request
+     * @param buffer Buffer that receives the frame
+     * @param encoder UTF-8 encoder, reused between calls
+     */
+    public static void encodeResponse(String text, byte status, int correlationId, byte format, ByteBuffer buffer,
+                                      CharsetEncoder encoder) {
+        int start = beginFrame(buffer, format, status, correlationId);
+        if (format == FORMAT_JSON) {
+            JsonObject message = new JsonObject();
+            message.addProperty("status", status == STATUS_OK ? "ok" : status == STATUS_PARTIAL ? "partial" : "error");
+            message.addProperty("response", text);
+            putText(buffer, message.toString(), encoder);
+        } else {
+            putString(buffer, text, encoder);
+        }
+        endFrame(buffer, start);
+    }
+
+    /**
+     * Reads a response from a frame whose version and format were checked by {@link #readFrameHeader}
+     * @param frame Buffer positioned at the status byte, limited to the end of the frame
+     * @param format Format from the frame header
+     * @return the decoded response
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static Response decodeResponse(ByteBuffer frame, byte format) throws ProtocolException {
+        try {
+            return readResponse(frame, format);
+        } catch (RuntimeException e) {
+            throw malformed("response", e);
+        }
+    }
+
+    private static Response readResponse(ByteBuffer frame, byte format) {
+        byte status = frame.get();
+        int correlationId = frame.getInt();
+        String text;
+        if (format == FORMAT_JSON) {
+            JsonObject message = (JsonObject) new JsonParser().parse(getText(frame));
+            text = message.get("response").getAsString();
+        } else {
+            text = getString(frame);
+        }
+        return new Response(correlationId, status, text);
+    }
+
+    /**
+     * Checks the version of a frame whose length prefix has already been consumed and reads its format
+     * @param frame Buffer positioned at the version byte, limited to the end of the frame
+     * @return the format byte. The type byte and the correlation id are next in the buffer
+     * @throws ProtocolException if the frame comes from another protocol version
+     */
+    public static byte readFrameHeader(ByteBuffer frame) throws ProtocolException {
+        byte version = frame.get();
+        if (version != VERSION)
+            throw new ProtocolException("Unsupported protocol version " + version + ", expected " + VERSION);
+        byte format = frame.get();
+        if (format != FORMAT_BINARY && format != FORMAT_JSON)
+            throw new ProtocolException("Unknown payload format " + format);
+        return format;
+    }
+
+    /**
+     * Reserves the length prefix and writes the version, format, type and correlation id
+     * @return position of the length prefix
+     */
+    private static int beginFrame(ByteBuffer buffer, byte format, byte type, int correlationId) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(VERSION);
+        buffer.put(format);
+        buffer.put(type);
+        buffer.putInt(correlationId);
+        return start;
+    }
+
+    /**
+     * Fills in the length prefix once the payload is written
+     */
+    private static void endFrame(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    /**
+     * Writes an int byte count followed by the UTF-8 bytes of the String, or -1 for null
+     */
+    private static void putString(ByteBuffer buffer, String s, CharsetEncoder encoder) {
+        if (s == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        putText(buffer, s, encoder);
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    /**
+     * Encodes the String straight into the buffer, without an intermediate byte array
+     */
+    private static void putText(ByteBuffer buffer, String s, CharsetEncoder encoder) {
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(s), buffer, true);
+        if (result.isOverflow())
+            throw new BufferOverflowException();
+        if (encoder.flush(buffer).isOverflow())
+            throw new BufferOverflowException();
+    }
+
+    /**
+     * @throws BufferUnderflowException if the length is negative but not -1, or longer than the rest of the frame
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > buffer.remaining())
+            throw new BufferUnderflowException();
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * Turns what a malformed frame made a codec throw, a BufferUnderflowException, a ClassCastException or a
+     * JsonParseException among others, into the exception of a bad frame
+     */
+    private static ProtocolException malformed(String kind, RuntimeException e) {
+        ProtocolException exception = new ProtocolException("Malformed " + kind + " frame: " + e);
+        exception.initCause(e);
+        return exception;
+    }
+
+    /**
+     * Reads the rest of the frame as UTF-8 text
+     */
+    private static String getText(ByteBuffer buffer) {
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.limit());
+        return s;
+    }
+}